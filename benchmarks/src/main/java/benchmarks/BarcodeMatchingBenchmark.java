@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Barcode;
+import model.ReadStatistics;
+import tools.AnalyzeAlignedBAM;
+import tools.ClassificationCache;
+import tools.Logger;
+import tools.TFBarcodes;
+
+/**
+ * Best matching TF barcodes of the windows of a read: one window (indexed lookup, or full scan as before the index), or both windows (classify, with and without the cache)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BarcodeMatchingBenchmark
+{
+	private TFBarcodes barcodes;
+	private String[] bc1;
+	private byte[][] bc1Bytes;
+	private Fixtures.Windows[] windows;
+	private ClassificationCache cache;
+	private final ReadStatistics stats = new ReadStatistics();
+	private final Logger log = new Logger(null);
+	private int i = 0;
+
+	@Setup
+	public void setup()
+	{
+		barcodes = new TFBarcodes(Fixtures.barcodeFile(), Fixtures.LENGTH_BC1, Fixtures.LENGTH_BC2);
+		String[][] pairs = Fixtures.windows(barcodes.list, 4096);
+		bc1 = new String[pairs.length];
+		bc1Bytes = new byte[pairs.length][];
+		windows = new Fixtures.Windows[pairs.length];
+		for(int j = 0; j < pairs.length; j++)
+		{
+			bc1[j] = pairs[j][0] != null ? pairs[j][0] : barcodes.list.get(j % barcodes.size()).first;
+			bc1Bytes[j] = bc1[j].getBytes();
+			windows[j] = new Fixtures.Windows(pairs[j]);
+		}
+		cache = new ClassificationCache(ClassificationCache.DEFAULT_SIZE);
+	}
+
+	@Benchmark
+	public ArrayList<Barcode> indexedLookup()
+	{
+		i = (i + 1) & 4095;
+		return barcodes.matcherBC1.getBestMatchingBarcodes(bc1Bytes[i], 0, bc1Bytes[i].length);
+	}
+
+	@Benchmark
+	public ArrayList<Barcode> fullScan()
+	{
+		i = (i + 1) & 4095;
+		return barcodes.matcherBC1.scan(bc1[i]);
+	}
+
+	@Benchmark
+	public Barcode classify()
+	{
+		i = (i + 1) & 4095;
+		return AnalyzeAlignedBAM.classify(windows[i], barcodes, null, stats, log);
+	}
+
+	@Benchmark
+	public Barcode classifyCached()
+	{
+		i = (i + 1) & 4095;
+		return AnalyzeAlignedBAM.classify(windows[i], barcodes, cache, stats, log);
+	}
+}
@@ -0,0 +1,440 @@
+package benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import model.Barcode;
+import model.ErrorMessage;
+import tools.Levenshtein;
+import tools.ParallelGZIPOutputStream;
+import tools.Utils;
+
+/**
+ * Synthetic TF-seq library: R1.fastq.gz (BU pattern: 16 bp cell barcode, 12 bp UMI), R2.bam (unsorted, aligned on the vector, in the order of R1) and truth.tsv (reads and UMIs of each TF x cell).
+ * The R2 reads are taken from the vector with the TF barcodes in their windows. Indels and splices (N) are put in the flanks, sequencing errors anywhere except when they could change the matched TF
+ * (barcode 2, or a barcode 1 substitution close to another TF), so that the counts of the Counter (with '--nu 0') are known exactly.
+ */
+public class DatasetGenerator
+{
+	private static final int CELL_LENGTH = 16;
+	private static final int UMI_LENGTH = 12;
+	private static final char[] ACGT = {'A', 'C', 'G', 'T'};
+
+	// Options
+	public File vectorFasta = null;
+	public File tfFile = null;
+	public File outputFolder = null;
+	public long nbReads = 1000000;
+	public int nbCells = 1000;
+	public double umiDepth = 2; // Mean number of reads per UMI
+	public double errorRate = 0.001; // Substitutions per base of R2
+	public double indelRate = 0.02; // Reads with an insertion or a deletion
+	public double spliceRate = 0.02; // Reads with a N in their CIGAR
+	public double unmappedRate = 0.05;
+	public double offTargetRate = 0.1; // Mapped reads not overlapping the barcodes
+	public int readLength = 90;
+	public int startBC1 = 3409;
+	public int endBC1 = 3419;
+	public int startBC2 = 3447;
+	public int endBC2 = 3454;
+	public int nbThreads = 1; // Compression of R1
+	public long seed = Fixtures.SEED;
+
+	// State
+	private Random random;
+	private byte[] vector;
+	private ArrayList<Barcode> tfs; // TFs that can be resolved (no other TF with the same pair of barcodes)
+	private ArrayList<Barcode> allTFs; // All the TFs of the barcode file, as matched by the Counter
+	private byte[][] templates; // Vector with the barcodes of each TF
+	private Levenshtein metric = new Levenshtein();
+	private String[] cells;
+	private final HashMap<Long, long[]> truth = new HashMap<Long, long[]>(); // TF x cell => reads, UMIs
+
+	public static void main(String[] args)
+	{
+		DatasetGenerator g = new DatasetGenerator();
+		g.parse(args);
+		g.generate();
+	}
+
+	/**
+	 * Writes the three files in outputFolder
+	 */
+	public void generate()
+	{
+		long start = System.currentTimeMillis();
+		random = new Random(seed);
+		outputFolder.mkdirs();
+		String contig = readContigName(vectorFasta);
+		vector = Utils.readFasta(vectorFasta);
+		loadTFs();
+		HashSet<String> unique = new HashSet<String>();
+		while(unique.size() < nbCells) unique.add(sequence(CELL_LENGTH));
+		cells = unique.toArray(new String[nbCells]);
+		Arrays.sort(cells);
+
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord(contig, vector.length));
+		header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+		try(OutputStream r1 = new BufferedOutputStream(new ParallelGZIPOutputStream(new FileOutputStream(new File(outputFolder, "R1.fastq.gz")), nbThreads), 1 << 16);
+			SAMFileWriter r2 = new SAMFileWriterFactory().setCreateIndex(false).makeBAMWriter(header, true, new File(outputFolder, "R2.bam")))
+		{
+			StringBuilder r1Record = new StringBuilder();
+			String quality = Barcode.construct("F", CELL_LENGTH + UMI_LENGTH);
+			int tf = -1, cell = -1;
+			String umi = null;
+			int remaining = 0; // Reads of the current molecule
+			for(long i = 0; i < nbReads; i++)
+			{
+				if(i % 1000000 == 0 && i > 0) System.out.println(i + " reads were generated [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+				String name = "SYN:" + i;
+				SAMRecord record = new SAMRecord(header);
+				record.setReadName(name);
+				double p = random.nextDouble();
+				String r1Cell, r1UMI;
+				if(p < unmappedRate) // Unmapped read, from anywhere
+				{
+					record.setReadUnmappedFlag(true);
+					setBases(record, sequence(readLength).getBytes(StandardCharsets.US_ASCII));
+					r1Cell = cells[random.nextInt(nbCells)];
+					r1UMI = sequence(UMI_LENGTH);
+				}
+				else if(p < unmappedRate + offTargetRate) // Mapped outside of the barcodes
+				{
+					int pos = offTargetStart();
+					align(record, pos, readLength + "M", Arrays.copyOfRange(vector, pos - 1, pos - 1 + readLength), -1, null);
+					r1Cell = cells[random.nextInt(nbCells)];
+					r1UMI = sequence(UMI_LENGTH);
+				}
+				else // TF read
+				{
+					if(remaining == 0) // New molecule
+					{
+						tf = random.nextInt(tfs.size());
+						cell = random.nextInt(nbCells);
+						long[] counts = truth.computeIfAbsent(key(tf, cell), k -> new long[2]);
+						umi = umi(tf, cell, counts[1]++);
+						remaining = depth();
+					}
+					remaining--;
+					truth.get(key(tf, cell))[0]++;
+					tfRead(record, tf);
+					r1Cell = cells[cell];
+					r1UMI = umi;
+				}
+				r2.addAlignment(record);
+				r1Record.setLength(0);
+				r1Record.append('@').append(name).append(" 1:N:0:1\n").append(r1Cell).append(r1UMI).append("\n+\n").append(quality).append('\n');
+				r1.write(r1Record.toString().getBytes(StandardCharsets.US_ASCII));
+			}
+		}
+		catch(IOException ioe)
+		{
+			new ErrorMessage(ioe.getMessage());
+		}
+		writeTruth(new File(outputFolder, "truth.tsv"));
+		System.out.println(nbReads + " reads were generated in " + outputFolder + " [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+	}
+
+	/**
+	 * R2 read covering both barcode windows, with the barcodes of this TF (and maybe an indel or a splice outside of the windows)
+	 */
+	private void tfRead(SAMRecord record, int tf)
+	{
+		byte[] template = templates[tf];
+		int span = endBC2 - startBC1 + 1;
+		double p = random.nextDouble();
+		for(int attempt = 0; attempt < 100; attempt++)
+		{
+			int pos = startBC1 - random.nextInt(readLength - span + 1);
+			int before = 1 + random.nextInt(readLength - 4); // Read bases before the indel or the junction
+			int length = 1 + random.nextInt(3);
+			String cigar;
+			if(p < indelRate && random.nextBoolean()) cigar = before + "M" + length + "I" + (readLength - before - length) + "M";
+			else if(p < indelRate) cigar = before + "M" + length + "D" + (readLength - before) + "M";
+			else if(p < indelRate + spliceRate) cigar = before + "M" + (50 + random.nextInt(1000)) + "N" + (readLength - before) + "M";
+			else cigar = readLength + "M";
+			if(walk(record, pos, cigar, template, tfs.get(tf))) return;
+		}
+		walk(record, startBC1 - (readLength - span) / 2, readLength + "M", template, tfs.get(tf)); // No room for the indel/junction
+	}
+
+	/**
+	 * Aligns the read with this CIGAR, if both windows are entirely covered and not broken by an indel or a junction
+	 * @return false if the read cannot be aligned so
+	 */
+	private boolean walk(SAMRecord record, int pos, String cigar, byte[] template, Barcode own)
+	{
+		byte[] bases = new byte[readLength];
+		int ref = pos;
+		int read = 0;
+		int bc1Offset = -1;
+		int length = 0;
+		for(char c:cigar.toCharArray())
+		{
+			if(Character.isDigit(c))
+			{
+				length = length * 10 + (c - '0');
+				continue;
+			}
+			if(c != 'M' && ref > startBC1 && ref <= endBC2) return false; // In the windows
+			switch(c)
+			{
+				case 'M':
+					if(ref + length - 1 > template.length) return false;
+					for(int i = 0; i < length; i++)
+					{
+						if(ref == startBC1) bc1Offset = read;
+						bases[read++] = template[ref++ - 1];
+					}
+					break;
+				case 'I':
+					for(int i = 0; i < length; i++) bases[read++] = (byte)ACGT[random.nextInt(4)];
+					break;
+				default: // D, N
+					ref += length;
+			}
+			length = 0;
+		}
+		if(bc1Offset == -1 || ref <= endBC2) return false; // Not covering both windows
+		align(record, pos, cigar, bases, bc1Offset, own);
+		return true;
+	}
+
+	/**
+	 * Sets the alignment, with sequencing errors
+	 * @param bc1Offset position of barcode 1 in the read (barcode 2 is never mutated), -1 if not overlapping
+	 * @param own TF of the read (null if not overlapping)
+	 */
+	private void align(SAMRecord record, int pos, String cigar, byte[] bases, int bc1Offset, Barcode own)
+	{
+		int lBC1 = endBC1 - startBC1 + 1;
+		int bc2Offset = bc1Offset + startBC2 - startBC1;
+		int lBC2 = endBC2 - startBC2 + 1;
+		for(int i = 0; i < bases.length; i++)
+		{
+			if(random.nextDouble() >= errorRate) continue;
+			if(bc1Offset != -1 && i >= bc2Offset && i < bc2Offset + lBC2) continue; // Any error in barcode 2 changes the match
+			byte previous = bases[i];
+			byte b = previous;
+			while(b == previous) b = (byte)ACGT[random.nextInt(4)];
+			bases[i] = b;
+			if(bc1Offset != -1 && i >= bc1Offset && i < bc1Offset + lBC1 && !isSafe(new String(bases, bc1Offset, lBC1, StandardCharsets.US_ASCII), own)) bases[i] = previous;
+		}
+		record.setReferenceIndex(0);
+		record.setAlignmentStart(pos);
+		record.setCigarString(cigar);
+		record.setMappingQuality(255);
+		record.setAttribute("NH", 1);
+		setBases(record, bases);
+	}
+
+	/**
+	 * True if this barcode 1 (with all the substitutions of the read so far) still matches only its own TF, i.e. is within one edit of the barcode 1 of its TF, and at more than one edit of the barcode 1 of all other TFs of the file (including the ones that are not generated)
+	 */
+	private boolean isSafe(String bc1, Barcode own)
+	{
+		if(metric.distance(bc1, own.first) > 1) return false;
+		for(Barcode b:allTFs) if(b != own && metric.distance(bc1, b.first) <= 1) return false;
+		return true;
+	}
+
+	private void setBases(SAMRecord record, byte[] bases)
+	{
+		byte[] qualities = new byte[bases.length];
+		Arrays.fill(qualities, (byte)37);
+		record.setReadBases(bases);
+		record.setBaseQualities(qualities);
+	}
+
+	/**
+	 * Start of a read that does not overlap the barcode windows (nor the flanks used to align them)
+	 */
+	private int offTargetStart()
+	{
+		while(true)
+		{
+			int pos = 1 + random.nextInt(vector.length - readLength);
+			if(pos + readLength - 1 < startBC1 - 50 || pos > endBC2 + 50) return pos;
+		}
+	}
+
+	/**
+	 * Reads of a molecule: 1 + geometric, of mean umiDepth
+	 */
+	private int depth()
+	{
+		int d = 1;
+		double p = (umiDepth - 1) / umiDepth;
+		while(random.nextDouble() < p) d++;
+		return d;
+	}
+
+	/**
+	 * n-th UMI of a TF x cell: distinct for all n < 4^12 (bijection of n)
+	 */
+	private static String umi(int tf, int cell, long n)
+	{
+		long x = (n * 0x9E3779B1L + tf * 7919L + cell * 104729L) & ((1L << (2 * UMI_LENGTH)) - 1);
+		char[] s = new char[UMI_LENGTH];
+		for(int i = 0; i < UMI_LENGTH; i++)
+		{
+			s[i] = ACGT[(int)(x & 3)];
+			x >>>= 2;
+		}
+		return new String(s);
+	}
+
+	private String sequence(int length)
+	{
+		char[] s = new char[length];
+		for(int i = 0; i < length; i++) s[i] = ACGT[random.nextInt(4)];
+		return new String(s);
+	}
+
+	private static long key(int tf, int cell)
+	{
+		return ((long)tf << 32) | cell;
+	}
+
+	/**
+	 * TFs of the barcode file whose pair of barcodes is unique (the others can never be counted)
+	 */
+	private void loadTFs()
+	{
+		ArrayList<Barcode> all = Barcode.readBarcodeFile(tfFile, endBC1 - startBC1 + 1, endBC2 - startBC2 + 1);
+		allTFs = all;
+		HashMap<String, Integer> pairs = new HashMap<String, Integer>();
+		for(Barcode b:all) pairs.merge(b.first + "/" + b.second, 1, Integer::sum);
+		tfs = new ArrayList<Barcode>();
+		for(Barcode b:all) if(pairs.get(b.first + "/" + b.second) == 1) tfs.add(b);
+		if(tfs.isEmpty()) new ErrorMessage("No TF with a unique pair of barcodes in " + tfFile);
+		templates = new byte[tfs.size()][];
+		for(int tf = 0; tf < tfs.size(); tf++)
+		{
+			templates[tf] = Arrays.copyOf(vector, vector.length);
+			System.arraycopy(tfs.get(tf).first.getBytes(StandardCharsets.US_ASCII), 0, templates[tf], startBC1 - 1, endBC1 - startBC1 + 1);
+			System.arraycopy(tfs.get(tf).second.getBytes(StandardCharsets.US_ASCII), 0, templates[tf], startBC2 - 1, endBC2 - startBC2 + 1);
+		}
+		if(tfs.size() < all.size()) System.out.println((all.size() - tfs.size()) + " TFs share their barcodes with another TF, they are not generated.");
+	}
+
+	/**
+	 * TFId, cell barcode, reads and UMIs of all non-empty TF x cell
+	 */
+	private void writeTruth(File file)
+	{
+		try(BufferedWriter bw = new BufferedWriter(new FileWriter(file)))
+		{
+			bw.write("TFId\tCell\tReads\tUMIs\n");
+			for(Map.Entry<Long, long[]> e:truth.entrySet())
+			{
+				int tf = (int)(e.getKey() >>> 32);
+				int cell = (int)(e.getKey() & 0xFFFFFFFFL);
+				bw.write(tfs.get(tf).id + "\t" + cells[cell] + "\t" + e.getValue()[0] + "\t" + e.getValue()[1] + "\n");
+			}
+		}
+		catch(IOException ioe)
+		{
+			new ErrorMessage(ioe.getMessage());
+		}
+	}
+
+	private static String readContigName(File fasta)
+	{
+		try(BufferedReader br = new BufferedReader(new FileReader(fasta)))
+		{
+			String line = br.readLine();
+			if(line == null || !line.startsWith(">")) new ErrorMessage("The FASTA file " + fasta.getAbsolutePath() + " has formatting issues");
+			return line.substring(1).trim().split("\\s+")[0];
+		}
+		catch(IOException ioe)
+		{
+			new ErrorMessage(ioe.getMessage());
+			return null;
+		}
+	}
+
+	private void parse(String[] args)
+	{
+		if(args.length == 0) printHelp();
+		for(int i = 0; i < args.length; i++)
+		{
+			try
+			{
+				switch(args[i])
+				{
+					case "--vector": vectorFasta = new File(args[++i]); break;
+					case "--tf": tfFile = new File(args[++i]); break;
+					case "-o": outputFolder = new File(args[++i]); break;
+					case "--reads": nbReads = Long.parseLong(args[++i]); break;
+					case "--cells": nbCells = Integer.parseInt(args[++i]); break;
+					case "--umiDepth": umiDepth = Double.parseDouble(args[++i]); break;
+					case "--errorRate": errorRate = Double.parseDouble(args[++i]); break;
+					case "--indelRate": indelRate = Double.parseDouble(args[++i]); break;
+					case "--spliceRate": spliceRate = Double.parseDouble(args[++i]); break;
+					case "--unmappedRate": unmappedRate = Double.parseDouble(args[++i]); break;
+					case "--offTargetRate": offTargetRate = Double.parseDouble(args[++i]); break;
+					case "--readLength": readLength = Integer.parseInt(args[++i]); break;
+					case "--startBC1": startBC1 = Integer.parseInt(args[++i]); break;
+					case "--endBC1": endBC1 = Integer.parseInt(args[++i]); break;
+					case "--startBC2": startBC2 = Integer.parseInt(args[++i]); break;
+					case "--endBC2": endBC2 = Integer.parseInt(args[++i]); break;
+					case "--threads": nbThreads = Integer.parseInt(args[++i]); break;
+					case "--seed": seed = Long.parseLong(args[++i]); break;
+					default: new ErrorMessage("Unknown option " + args[i]);
+				}
+			}
+			catch(NumberFormatException | ArrayIndexOutOfBoundsException e)
+			{
+				new ErrorMessage("The '" + args[i - 1] + "' option should be followed by a number. " + e.getMessage());
+			}
+		}
+		if(vectorFasta == null || !vectorFasta.isFile()) new ErrorMessage("Please use '--vector' option to specify the FASTA file of the vector");
+		if(tfFile == null || !tfFile.isFile()) new ErrorMessage("Please use '--tf' option to specify the TF barcode file");
+		if(outputFolder == null) new ErrorMessage("Please use '-o' option to specify the output folder");
+		if(umiDepth < 1) new ErrorMessage("--umiDepth should be at least 1");
+		if(unmappedRate + offTargetRate > 1) new ErrorMessage("--unmappedRate + --offTargetRate should be at most 1");
+		if(readLength < endBC2 - startBC1 + 1) new ErrorMessage("--readLength should be at least the span of the barcodes (" + (endBC2 - startBC1 + 1) + ")");
+	}
+
+	private static void printHelp()
+	{
+		System.out.println("DatasetGenerator: writes R1.fastq.gz, R2.bam and truth.tsv (TFId, cell, reads, UMIs) of a synthetic library");
+		System.out.println("\t--vector %s \t[Required] FASTA file of the vector (the reference of R2.bam)");
+		System.out.println("\t--tf %s \t[Required] TF barcode file");
+		System.out.println("\t-o %s \t\t[Required] Output folder");
+		System.out.println("\t--reads %i \tNumber of reads [default = 1000000]");
+		System.out.println("\t--cells %i \tNumber of cells [default = 1000]");
+		System.out.println("\t--umiDepth %f \tMean number of reads per UMI [default = 2]");
+		System.out.println("\t--errorRate %f \tSubstitutions per base of R2 [default = 0.001]");
+		System.out.println("\t--indelRate %f \tFraction of TF reads with a 1-3 bp insertion or deletion [default = 0.02]");
+		System.out.println("\t--spliceRate %f \tFraction of TF reads with a splice (N) in their CIGAR [default = 0.02]");
+		System.out.println("\t--unmappedRate %f \tFraction of unmapped reads [default = 0.05]");
+		System.out.println("\t--offTargetRate %f \tFraction of reads mapped outside of the barcodes [default = 0.1]");
+		System.out.println("\t--readLength %i \tLength of R2 [default = 90]");
+		System.out.println("\t--startBC1 %i, --endBC1 %i, --startBC2 %i, --endBC2 %i \tPositions of the barcodes in the vector, as for the Counter [default = 3409, 3419, 3447, 3454]");
+		System.out.println("\t--threads %i \tThreads compressing R1 [default = 1]");
+		System.out.println("\t--seed %i \tSeed of the random generator [default = 42]");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,162 @@
+package benchmarks;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import model.Barcode;
+import model.CounterConfig;
+import model.ErrorMessage;
+import tools.BarcodeWindows;
+
+/**
+ * Inputs of the benchmarks, generated from example/barcodes/tf_barcodes.txt with fixed seeds, so that the results can be compared between releases
+ */
+public class Fixtures
+{
+	public static final long SEED = 42;
+	public static final int LENGTH_BC1 = 11; // Default positions, [3409, 3419] and [3447, 3454]
+	public static final int LENGTH_BC2 = 8;
+	private static final char[] ACGT = {'A', 'C', 'G', 'T'};
+
+	/**
+	 * The TF barcode file of the repository (from the project folder or the benchmarks folder), or the one given with -Dtfseq.barcodes=...
+	 */
+	public static File barcodeFile()
+	{
+		String path = System.getProperty("tfseq.barcodes");
+		if(path != null) return new File(path);
+		for(String p:new String[] {"example/barcodes/tf_barcodes.txt", "../example/barcodes/tf_barcodes.txt"}) if(new File(p).isFile()) return new File(p);
+		new ErrorMessage("example/barcodes/tf_barcodes.txt was not found. Run the benchmarks from the project folder, or use -Dtfseq.barcodes=<TF barcode file>");
+		return null;
+	}
+
+	public static ArrayList<Barcode> barcodes()
+	{
+		return Barcode.readBarcodeFile(barcodeFile(), LENGTH_BC1, LENGTH_BC2);
+	}
+
+	/**
+	 * Barcode windows as found in the reads: 70% exact barcodes, 20% with one substitution, 5% random and 5% not overlapping
+	 * @return n pairs of windows (null if not overlapping)
+	 */
+	public static String[][] windows(ArrayList<Barcode> barcodes, int n)
+	{
+		Random r = new Random(SEED);
+		String[][] windows = new String[n][2];
+		for(int i = 0; i < n; i++)
+		{
+			Barcode b = barcodes.get(r.nextInt(barcodes.size()));
+			double p = r.nextDouble();
+			if(p < 0.7) windows[i] = new String[] {b.first, b.second};
+			else if(p < 0.9) windows[i] = new String[] {substitute(b.first, r), substitute(b.second, r)};
+			else if(p < 0.95) windows[i] = new String[] {sequence(LENGTH_BC1, r), sequence(LENGTH_BC2, r)};
+			else windows[i] = r.nextBoolean() ? new String[] {b.first, null} : new String[] {null, b.second};
+		}
+		return windows;
+	}
+
+	/**
+	 * R1 FastQ file (BU pattern: 16 bp cell barcode, 12 bp UMI) of nbReads reads from nbCells cells
+	 */
+	public static byte[] fastqR1(int nbReads, int nbCells)
+	{
+		Random r = new Random(SEED);
+		String[] cells = new String[nbCells];
+		for(int c = 0; c < nbCells; c++) cells[c] = sequence(16, r);
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < nbReads; i++)
+		{
+			sb.append("@A00123:8:H7GFJDRXX:1:1101:").append(i).append(":1000 1:N:0:ACGTACGT\n");
+			sb.append(cells[r.nextInt(nbCells)]).append(sequence(12, r)).append("\n+\n");
+			sb.append("FFFFFFFFFFFFFFFFFFFFFFFFFFFF\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Settings for parsing the R1 file of fastqR1 (the files are not opened)
+	 */
+	public static CounterConfig config()
+	{
+		CounterConfig config = new CounterConfig();
+		config.inputFastQFileR1 = new File("R1.fastq.gz");
+		config.inputBAMFileR2 = new File("R2.bam");
+		config.inputTFFile = barcodeFile();
+		config.prepare();
+		return config;
+	}
+
+	/**
+	 * UMIs of one (cell, TF): random 12-mers, a third of them with sequencing errors (one substitution of another UMI of the set)
+	 */
+	public static HashSet<String> umis(int size)
+	{
+		Random r = new Random(SEED);
+		ArrayList<String> list = new ArrayList<String>();
+		while(list.size() < size)
+		{
+			if(!list.isEmpty() && r.nextInt(3) == 0) list.add(substitute(list.get(r.nextInt(list.size())), r));
+			else list.add(sequence(12, r));
+		}
+		return new HashSet<String>(list);
+	}
+
+	public static String sequence(int length, Random r)
+	{
+		char[] s = new char[length];
+		for(int i = 0; i < length; i++) s[i] = ACGT[r.nextInt(4)];
+		return new String(s);
+	}
+
+	public static String substitute(String s, Random r)
+	{
+		char[] c = s.toCharArray();
+		int i = r.nextInt(c.length);
+		char b = c[i];
+		while(b == c[i]) b = ACGT[r.nextInt(4)];
+		c[i] = b;
+		return new String(c);
+	}
+
+	/**
+	 * Windows given as strings (null if not overlapping)
+	 */
+	public static class Windows implements BarcodeWindows
+	{
+		private final byte[][] windows = new byte[2][];
+
+		public Windows(String[] pair)
+		{
+			for(int w = 0; w < 2; w++) windows[w] = pair[w] == null ? null : pair[w].getBytes(StandardCharsets.US_ASCII);
+		}
+
+		@Override
+		public byte[] getWindow(int w)
+		{
+			return windows[w];
+		}
+
+		@Override
+		public int getOffset(int w)
+		{
+			return 0;
+		}
+
+		@Override
+		public int getLength(int w)
+		{
+			return windows[w] == null ? -1 : windows[w].length;
+		}
+
+		@Override
+		public boolean isOnly(int w, byte b)
+		{
+			if(windows[w] == null) return false;
+			for(byte c:windows[w]) if(c != b) return false;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Barcode;
+import tools.BarcodeMatcher;
+import tools.Levenshtein;
+
+/**
+ * Levenshtein.compare of a barcode 1 window against one TF barcode, with and without the early exit of the similarity threshold
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LevenshteinBenchmark
+{
+	private final Levenshtein metric = new Levenshtein();
+	private String[] queries;
+	private String[] targets;
+	private int i = 0;
+
+	@Setup
+	public void setup()
+	{
+		ArrayList<Barcode> barcodes = Fixtures.barcodes();
+		String[][] windows = Fixtures.windows(barcodes, 4096);
+		queries = new String[windows.length];
+		targets = new String[windows.length];
+		for(int j = 0; j < windows.length; j++)
+		{
+			queries[j] = windows[j][0] != null ? windows[j][0] : barcodes.get(j % barcodes.size()).first;
+			targets[j] = barcodes.get((j * 31) % barcodes.size()).first;
+		}
+	}
+
+	@Benchmark
+	public float compare()
+	{
+		i = (i + 1) & 4095;
+		return metric.compare(queries[i], targets[i]);
+	}
+
+	@Benchmark
+	public float compareWithThreshold()
+	{
+		i = (i + 1) & 4095;
+		return metric.compare(queries[i], targets[i], BarcodeMatcher.MIN_SIMILARITY);
+	}
+}
@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.CounterConfig;
+import tools.FastqParser;
+import tools.Utils;
+
+/**
+ * Parsing of an uncompressed R1 FastQ file of 100,000 reads: one Read object per read (Read.next, the parsing of previous releases), or the byte-level parser (FastqParser)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class R1ParsingBenchmark
+{
+	private byte[] fastq;
+	private CounterConfig config;
+
+	@Setup
+	public void setup()
+	{
+		fastq = Fixtures.fastqR1(100000, 1000);
+		config = Fixtures.config();
+	}
+
+	@Benchmark
+	public long nextRead() throws IOException
+	{
+		BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(fastq)));
+		long n = 0;
+		Read read = Read.next(br, config);
+		while(read != null)
+		{
+			n += read.UMI.length();
+			read = Read.next(br, config);
+		}
+		return n;
+	}
+
+	@Benchmark
+	public long fastqParser()
+	{
+		FastqParser parser = new FastqParser(new ByteArrayInputStream(fastq));
+		long n = 0;
+		while(parser.next())
+		{
+			Utils.checkR1Read(parser, config);
+			n += parser.getSequence(config.UMIRange[0], config.UMIRange[1]).length();
+		}
+		return n;
+	}
+}
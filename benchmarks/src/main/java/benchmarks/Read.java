@@ -0,0 +1,35 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+import model.CounterConfig;
+
+/**
+ * One R1 read as a String object, parsed line by line with a BufferedReader: the R1 parsing of previous releases, kept as the reference of R1ParsingBenchmark (the Counter uses tools.FastqParser)
+ */
+public class Read
+{
+	public String name;
+	public String barcode;
+	public String UMI;
+
+	/**
+	 * @return the next read of the R1 FastQ file, or null at the end of the file
+	 */
+	public static Read next(BufferedReader br, CounterConfig config) throws IOException
+	{
+		String header = br.readLine(); // Get first line = READNAME + INDEX
+		if(header == null) return null;
+		if(!header.startsWith("@")) throw new IOException("R1 fastq file has formatting issues");
+		Read read = new Read();
+		read.name = header.substring(1, header.indexOf(" "));
+		String indexes = br.readLine().trim(); // Get second line = READ
+		if(indexes.length() != config.lengthBarcode) throw new IOException("Read found in FastQ has length " + indexes.length() + " while barcode pattern has length " + config.lengthBarcode);
+		if(config.l1 != -1) read.barcode = indexes.substring(config.barcodeRange[0], config.barcodeRange[1]); // If there is a barcode to look for
+		if(config.UMILength != -1) read.UMI = indexes.substring(config.UMIRange[0], config.UMIRange[1]);
+		br.readLine(); // Third line = we don't care
+		br.readLine(); // Fourth line = qualities = we don't care
+		return read;
+	}
+}
@@ -0,0 +1,253 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import model.ErrorMessage;
+
+/**
+ * End-to-end scaling of the Counter: for each size, generates a synthetic library (DatasetGenerator, kept for the next runs), counts it in a new JVM and checks the matrices against the ground truth.
+ * Reports the wall time (JVM start included), reads/s and peak RSS of the Counter JVM in the console and in scaling.tsv.
+ * Options after '--' are given to the Counter (e.g. -- --inflateThreads 2 --lockstep).
+ */
+public class ScalingBenchmark
+{
+	private static final String PEAK_RSS = "PEAK_RSS_KB\t";
+
+	private File vectorFasta = null;
+	private File tfFile = null;
+	private File workFolder = null;
+	private long[] sizes = {1000000, 10000000, 100000000};
+	private int nbThreads = 1;
+	private String xmx = null;
+	private int[] positions = {3409, 3419, 3447, 3454};
+	private final ArrayList<String> counterArgs = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length > 0 && args[0].equals("--child")) // In the Counter JVM
+		{
+			String[] counter = new String[args.length];
+			counter[0] = "Counter";
+			System.arraycopy(args, 1, counter, 1, args.length - 1);
+			Class.forName("TFseqTools").getMethod("main", String[].class).invoke(null, (Object)counter); // Default package, not importable
+			System.out.println(PEAK_RSS + peakRSS());
+			return;
+		}
+		ScalingBenchmark b = new ScalingBenchmark();
+		b.parse(args);
+		b.run();
+	}
+
+	private void run() throws IOException, InterruptedException
+	{
+		workFolder.mkdirs();
+		File report = new File(workFolder, "scaling.tsv");
+		try(BufferedWriter bw = new BufferedWriter(new FileWriter(report)))
+		{
+			bw.write("Reads\tThreads\tWall (s)\tReads/s\tPeak RSS (MB)\tGround truth\n");
+			System.out.println("Reads\tThreads\tWall (s)\tReads/s\tPeak RSS (MB)\tGround truth");
+			for(long size:sizes)
+			{
+				File data = new File(workFolder, "reads_" + size);
+				if(!new File(data, "truth.tsv").isFile()) generate(size, data);
+				File out = new File(data, "out_" + nbThreads);
+				out.mkdirs();
+				long start = System.nanoTime();
+				long peak = count(data, out);
+				double wall = (System.nanoTime() - start) / 1e9;
+				String check = check(new File(data, "truth.tsv"), out);
+				String line = size + "\t" + nbThreads + "\t" + String.format("%.2f", wall) + "\t" + Math.round(size / wall) + "\t" + (peak < 0 ? "NA" : String.valueOf(peak / 1024)) + "\t" + check;
+				System.out.println(line);
+				bw.write(line + "\n");
+				bw.flush();
+			}
+		}
+		System.out.println("Report written in " + report.getAbsolutePath());
+	}
+
+	private void generate(long size, File data)
+	{
+		System.out.println("Generating " + size + " reads in " + data);
+		DatasetGenerator g = new DatasetGenerator();
+		g.vectorFasta = vectorFasta;
+		g.tfFile = tfFile;
+		g.outputFolder = data;
+		g.nbReads = size;
+		g.nbCells = (int)Math.max(100, Math.min(10000, size / 1000)); // ~1000 reads per cell, as a TF-seq library
+		g.startBC1 = positions[0];
+		g.endBC1 = positions[1];
+		g.startBC2 = positions[2];
+		g.endBC2 = positions[3];
+		g.nbThreads = Runtime.getRuntime().availableProcessors();
+		g.generate();
+	}
+
+	/**
+	 * Runs the Counter in a new JVM (output in counter.log)
+	 * @return the peak RSS of the JVM in kB, -1 if unknown
+	 */
+	private long count(File data, File out) throws IOException, InterruptedException
+	{
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		if(xmx != null) cmd.add("-Xmx" + xmx);
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(ScalingBenchmark.class.getName());
+		cmd.add("--child");
+		String[] args = {"--r1", new File(data, "R1.fastq.gz").getPath(), "--r2", new File(data, "R2.bam").getPath(), "--tf", tfFile.getPath(), "-o", out.getPath(),
+				"--startBC1", String.valueOf(positions[0]), "--endBC1", String.valueOf(positions[1]), "--startBC2", String.valueOf(positions[2]), "--endBC2", String.valueOf(positions[3]),
+				"--threads", String.valueOf(nbThreads)};
+		for(String a:args) cmd.add(a);
+		cmd.addAll(counterArgs);
+		Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+		long peak = -1;
+		try(BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream())); BufferedWriter log = new BufferedWriter(new FileWriter(new File(out, "counter.log"))))
+		{
+			String line;
+			while((line = br.readLine()) != null)
+			{
+				if(line.startsWith(PEAK_RSS)) peak = Long.parseLong(line.substring(PEAK_RSS.length()));
+				else log.write(line + "\n");
+			}
+		}
+		if(p.waitFor() != 0) new ErrorMessage("The Counter failed, see " + new File(out, "counter.log").getAbsolutePath());
+		return peak;
+	}
+
+	/**
+	 * Compares the count and UMI matrices with truth.tsv
+	 * @return OK, or the number of TF x cell that differ
+	 */
+	private static String check(File truth, File out) throws IOException
+	{
+		HashMap<String, Long> reads = new HashMap<String, Long>();
+		HashMap<String, Long> umis = new HashMap<String, Long>();
+		try(BufferedReader br = new BufferedReader(new FileReader(truth)))
+		{
+			String line = br.readLine(); // Header
+			while((line = br.readLine()) != null)
+			{
+				String[] tokens = line.split("\t");
+				reads.put(tokens[0] + "\t" + tokens[1], Long.parseLong(tokens[2]));
+				umis.put(tokens[0] + "\t" + tokens[1], Long.parseLong(tokens[3]));
+			}
+		}
+		int nbDiffs = compare(reads, readMatrix(new File(out, "Results.Matrix.txt")));
+		nbDiffs += compare(umis, readMatrix(new File(out, "Results.Matrix.UMI.txt")));
+		return nbDiffs == 0 ? "OK" : "FAILED (" + nbDiffs + " differences)";
+	}
+
+	private static int compare(HashMap<String, Long> expected, HashMap<String, Long> found)
+	{
+		HashSet<String> keys = new HashSet<String>(expected.keySet());
+		keys.addAll(found.keySet());
+		int nbDiffs = 0;
+		for(String k:keys) if(!expected.getOrDefault(k, 0L).equals(found.getOrDefault(k, 0L))) nbDiffs++;
+		return nbDiffs;
+	}
+
+	/**
+	 * Non-zero entries of a dense matrix of the Counter, by TFId and cell barcode
+	 */
+	private static HashMap<String, Long> readMatrix(File matrix) throws IOException
+	{
+		HashMap<String, Long> values = new HashMap<String, Long>();
+		if(!matrix.isFile()) new ErrorMessage("No matrix at " + matrix.getAbsolutePath() + " (use '--format tsv' or 'both')");
+		try(BufferedReader br = new BufferedReader(new FileReader(matrix)))
+		{
+			String[] cells = br.readLine().split("\t");
+			String line;
+			while((line = br.readLine()) != null)
+			{
+				String[] tokens = line.split("\t");
+				for(int c = 2; c < tokens.length; c++)
+				{
+					long v = Long.parseLong(tokens[c]);
+					if(v != 0) values.merge(tokens[1] + "\t" + cells[c], v, Long::sum);
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return VmHWM of this JVM in kB (Linux), -1 if unknown
+	 */
+	private static long peakRSS()
+	{
+		try(BufferedReader br = new BufferedReader(new FileReader("/proc/self/status")))
+		{
+			String line;
+			while((line = br.readLine()) != null) if(line.startsWith("VmHWM:")) return Long.parseLong(line.replaceAll("[^0-9]", ""));
+		}
+		catch(IOException ioe)
+		{
+			// Not Linux
+		}
+		return -1;
+	}
+
+	private void parse(String[] args)
+	{
+		if(args.length == 0) printHelp();
+		for(int i = 0; i < args.length; i++)
+		{
+			try
+			{
+				switch(args[i])
+				{
+					case "--vector": vectorFasta = new File(args[++i]); break;
+					case "--tf": tfFile = new File(args[++i]); break;
+					case "-o": workFolder = new File(args[++i]); break;
+					case "--sizes":
+						String[] tokens = args[++i].split(",");
+						sizes = new long[tokens.length];
+						for(int s = 0; s < tokens.length; s++) sizes[s] = Long.parseLong(tokens[s].trim());
+						break;
+					case "--threads": nbThreads = Integer.parseInt(args[++i]); break;
+					case "--xmx": xmx = args[++i]; break;
+					case "--startBC1": positions[0] = Integer.parseInt(args[++i]); break;
+					case "--endBC1": positions[1] = Integer.parseInt(args[++i]); break;
+					case "--startBC2": positions[2] = Integer.parseInt(args[++i]); break;
+					case "--endBC2": positions[3] = Integer.parseInt(args[++i]); break;
+					case "--":
+						for(i++; i < args.length; i++) counterArgs.add(args[i]);
+						break;
+					default: new ErrorMessage("Unknown option " + args[i]);
+				}
+			}
+			catch(NumberFormatException | ArrayIndexOutOfBoundsException e)
+			{
+				new ErrorMessage("The '" + args[i - 1] + "' option should be followed by a number. " + e.getMessage());
+			}
+		}
+		if(vectorFasta == null || !vectorFasta.isFile()) new ErrorMessage("Please use '--vector' option to specify the FASTA file of the vector");
+		if(tfFile == null || !tfFile.isFile()) new ErrorMessage("Please use '--tf' option to specify the TF barcode file");
+		if(workFolder == null) new ErrorMessage("Please use '-o' option to specify the folder of the generated libraries and of the report");
+	}
+
+	private static void printHelp()
+	{
+		System.out.println("ScalingBenchmark: times the Counter on synthetic libraries of increasing size, and checks its matrices against the ground truth");
+		System.out.println("\t--vector %s \t[Required] FASTA file of the vector");
+		System.out.println("\t--tf %s \t[Required] TF barcode file");
+		System.out.println("\t-o %s \t\t[Required] Folder of the generated libraries (kept for the next runs) and of scaling.tsv");
+		System.out.println("\t--sizes %s \tComma-separated numbers of reads [default = 1000000,10000000,100000000]");
+		System.out.println("\t--threads %i \t'--threads' of the Counter [default = 1]");
+		System.out.println("\t--xmx %s \tMax heap of the Counter JVM (e.g. 8g) [default: JVM default]");
+		System.out.println("\t--startBC1 %i, --endBC1 %i, --startBC2 %i, --endBC2 %i \tPositions of the barcodes in the vector [default = 3409, 3419, 3447, 3454]");
+		System.out.println("\t-- ... \t\tOther options of the Counter");
+		System.exit(0);
+	}
+}
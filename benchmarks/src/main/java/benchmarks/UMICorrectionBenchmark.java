@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.UMIAccumulator;
+
+/**
+ * UMIAccumulator.getCorrectedSizes (--nu 1, one thread, i.e. UMICorrector.correctAll on the calling thread) of the UMIs of one (cell, TF), from a few UMIs to a highly expressed TF
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UMICorrectionBenchmark
+{
+	@Param({"5", "50", "500", "5000"})
+	public int size;
+
+	private UMIAccumulator umis;
+
+	@Setup
+	public void setup()
+	{
+		umis = new UMIAccumulator(1, 0);
+		long rank = 0;
+		for(String u:Fixtures.umis(size)) umis.add(0, 0, u, rank++);
+	}
+
+	@Benchmark
+	public int correctedSize()
+	{
+		return umis.getCorrectedSizes(1, 1, null, null).get(0, 0); // Not memoized: corrected at each invocation
+	}
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tools.WindowExtractor;
+
+/**
+ * Extraction of the two barcode windows of an aligned 150 bp read (formerly getAlignedStringAtPos), for a range of CIGARs
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WindowExtractorBenchmark
+{
+	@Param({"150M", "20S130M", "60M2I88M", "55M3D95M", "30M2000N120M", "10S40M1I30M2D69M"})
+	public String cigar;
+
+	private final WindowExtractor extractor = new WindowExtractor(3409, 3419, 3447, 3454);
+	private int[] binaryCigar;
+	private int nbCigar;
+	private byte[] bases;
+	private int alignmentStart;
+
+	@Setup
+	public void setup()
+	{
+		binaryCigar = new int[cigar.length()];
+		nbCigar = 0;
+		int length = 0;
+		int refLength = 0;
+		for(int i = 0; i < cigar.length(); i++)
+		{
+			char c = cigar.charAt(i);
+			if(Character.isDigit(c)) length = length * 10 + (c - '0');
+			else
+			{
+				int op = operator(c);
+				binaryCigar[nbCigar++] = (length << 4) | op;
+				if(op == WindowExtractor.OP_M || op == WindowExtractor.OP_D || op == WindowExtractor.OP_N) refLength += length;
+				length = 0;
+			}
+		}
+		alignmentStart = 3432 - refLength / 2; // Read centered on the barcodes
+		bases = Fixtures.sequence(150, new Random(Fixtures.SEED)).getBytes();
+	}
+
+	private static int operator(char c)
+	{
+		switch(c)
+		{
+			case 'M': return WindowExtractor.OP_M;
+			case 'I': return WindowExtractor.OP_I;
+			case 'D': return WindowExtractor.OP_D;
+			case 'N': return WindowExtractor.OP_N;
+			case 'S': return WindowExtractor.OP_S;
+			default: throw new IllegalArgumentException("Unsupported CIGAR operator " + c);
+		}
+	}
+
+	@Benchmark
+	public int extract()
+	{
+		extractor.extract(alignmentStart, binaryCigar, nbCigar, bases, bases.length);
+		return extractor.getLength(0) + extractor.getLength(1);
+	}
+}
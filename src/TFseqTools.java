@@ -1,16 +1,20 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import model.Barcode;
+import model.CounterConfig;
+import model.CounterException;
+import model.CounterResult;
 import model.ErrorMessage;
 import model.Parameters;
-import model.Read;
-import model.UMI;
-import tools.Logger;
+import tools.CounterEngine;
+import tools.TFBarcodes;
 import tools.Utils;
 
 /**
@@ -30,107 +34,114 @@ public class TFseqTools
 			String[] argsParsed = new String[args.length - 1];
 			for(int i = 0; i < args.length - 1; i++) argsParsed[i] = args[i + 1];
 			
-			switch(args[0])
+			try
 			{
-				case "Counter":
-					Parameters.loadCounter(argsParsed);
-					Logger.init(Parameters.logFile);
-					
-					System.out.println("\n-1- |  Reading TF barcodes");
-					Parameters.bc = Barcode.readBarcodeFile(Parameters.inputTFFile);
-					System.out.println(Parameters.bc.size() + " barcodes found in barcode file.");
-					
-					System.out.println("\n-2- |  Reading BAM file");
-					HashMap<String, Barcode> mappedReads = AnalyzeAlignedBAM.readR2BAM(Parameters.inputBAMFileR2);
-					System.out.println(Parameters.nbReads + " total reads in BAM file.");
-					System.out.println(Parameters.unmapped + " unmapped reads in BAM file.");
-					System.out.println(Parameters.notUnique + " not unique alignments.");
-					System.out.println(Parameters.tooLowAQUAL + " too Low AQual.");
-					System.out.println(Parameters.tooLowSQUAL + " too Low SQual.");
-					System.out.println(mappedReads.size() + " reads are consistently mapping to existing TFs.");
-					System.out.println((Parameters.nbReads - mappedReads.size()) + " reads are not mapping to TFs\t(" + Parameters.myFormatter.format(((Parameters.nbReads - mappedReads.size()) / (float)Parameters.nbReads) * 100) + "%)");
-					System.out.println(Parameters.overlapBC1 + " reads overlap with barcode 1 only\t(" + Parameters.myFormatter.format((Parameters.overlapBC1 / (float)Parameters.nbReads) * 100) + "%)");
-					System.out.println(Parameters.overlapBC2 + " reads overlap with barcode 2 only\t(" + Parameters.myFormatter.format((Parameters.overlapBC2 / (float)Parameters.nbReads) * 100) + "%)");
-					System.out.println(Parameters.overlapBoth + " reads overlap with both barcodes\t(" + Parameters.myFormatter.format((Parameters.overlapBoth / (float)Parameters.nbReads) * 100) + "%)");
-					
-					System.out.println("\n-3- |  Reading R1 fastq file");
-					ArrayList<Read> finalReads = Utils.readR1Fastq(mappedReads);
-					System.out.println(Parameters.nbReads + " total reads in FASTQ file.");
-					System.out.println(finalReads.size() + " R2 TF reads were matching R1 fastq file");
-					HashSet<String> uniqueBarcodes = Barcode.getUniqueBarcodes(finalReads);
-					System.out.println(uniqueBarcodes.size() + " unique CELL barcodes were found.");
-					
-					Logger.close();
-					
-					// Build indexes for filling the count/UMI matrix
-					HashMap<String, Integer> barcodeIndexes = new HashMap<>();
-					int index = 0;
-					for(String bc:uniqueBarcodes) {barcodeIndexes.put(bc, index); index++;}
-					HashMap<String, Integer> TFIndexes = new HashMap<>();
-					index = 0;
-					for(Barcode bc:Parameters.bc) {TFIndexes.put(bc.id, index); index++;}
-					
-					// Fill the count matrix
-					int[][] countMatrix = new int[Parameters.bc.size()][uniqueBarcodes.size()];
-					for(Read r:finalReads) countMatrix[TFIndexes.get(r.tfBarcode.id)][barcodeIndexes.get(r.barcode)]++;
-					
-					// Fill the UMI matrix
-					UMI[][] umiMatrix = new UMI[Parameters.bc.size()][uniqueBarcodes.size()];
-					for(int i = 0; i < umiMatrix.length; i++) for(int j = 0; j < umiMatrix[i].length; j++) umiMatrix[i][j] = new UMI(); 
-					for(Read r:finalReads) umiMatrix[TFIndexes.get(r.tfBarcode.id)][barcodeIndexes.get(r.barcode)].addUMI(r.UMI);
-					
-					try
-					{
-						BufferedWriter results = new BufferedWriter(new FileWriter(Parameters.outputFolder + "Results.Matrix.txt"));
-						results.write("TFName\tTFId");
-						for(String bc:uniqueBarcodes) results.write("\t" + bc);
-						results.write("\n");
-						for(Barcode b:Parameters.bc) 
-						{
-							results.write(b.name + "\t" + b.id);
-							for(String bc:uniqueBarcodes)
-							{
-								results.write("\t" + countMatrix[TFIndexes.get(b.id)][barcodeIndexes.get(bc)]);
-							}
-							results.write("\n");
-						}
-						results.close();
-					}
-					catch(IOException ioe)
-					{
-						new ErrorMessage(ioe.getMessage());
-					}
-					
-					try
-					{
-						BufferedWriter results = new BufferedWriter(new FileWriter(Parameters.outputFolder + "Results.Matrix.UMI.txt"));
-						results.write("TFName\tTFId");
-						for(String bc:uniqueBarcodes) results.write("\t" + bc);
-						results.write("\n");
-						for(Barcode b:Parameters.bc) 
-						{
-							results.write(b.name + "\t" + b.id);
-							for(String bc:uniqueBarcodes)
-							{
-								results.write("\t" + umiMatrix[TFIndexes.get(b.id)][barcodeIndexes.get(bc)].getCorrectedSize());
-							}
-							results.write("\n");
-						}
-						results.close();
-					}
-					catch(IOException ioe)
-					{
-						new ErrorMessage(ioe.getMessage());
-					}
-					
-					break;
-				default:
-					Parameters.printHelp();
-					new ErrorMessage("The tool '"+ args[0] +"' is not implemented. Please use one of the following: [Counter].");
+				switch(args[0])
+				{
+					case "Counter":
+						Parameters.loadCounter(argsParsed);
+						new CounterEngine(Parameters.toCounterConfig()).run();
+						break;
+					case "Batch":
+						Parameters.loadBatch(argsParsed);
+						runBatch(CounterConfig.readSampleSheet(Parameters.sampleSheet, Parameters.toCounterConfig()));
+						break;
+					default:
+						Parameters.printHelp();
+						new ErrorMessage("The tool '"+ args[0] +"' is not implemented. Please use one of the following: [Counter, Batch].");
+				}
+			}
+			catch(CounterException ce) // Only the command line ends the process
+			{
+				new ErrorMessage(ce.getMessage());
 			}
 		}
 	}
 	
-
+	/**
+	 * Counts all libraries of the sample sheet, at most Parameters.nbConcurrentSamples at the same time, sharing one pool of workers
+	 * The TF barcode file and its lookups are loaded once for all libraries using it
+	 * A library failing to be counted does not stop the others: the failures are listed in the summary, and end the process at the end
+	 */
+	private static void runBatch(ArrayList<CounterConfig> samples)
+	{
+		ExecutorService workers = Parameters.nbThreads > 1 ? Executors.newFixedThreadPool(Parameters.nbThreads) : null;
+		ExecutorService jobs = Executors.newFixedThreadPool(Parameters.nbConcurrentSamples);
+		long start = System.currentTimeMillis();
+		
+		System.out.println("\n-1- |  Reading TF barcodes");
+		HashMap<String, TFBarcodes> byTFFile = new HashMap<String, TFBarcodes>();
+		for(CounterConfig sample:samples)
+		{
+			sample.prepare();
+			String key = sample.inputTFFile.getAbsoluteFile().toPath().normalize().toString();
+			sample.barcodes = byTFFile.get(key);
+			if(sample.barcodes == null)
+			{
+				sample.barcodes = new TFBarcodes(sample.inputTFFile, sample.lBC1, sample.lBC2);
+				byTFFile.put(key, sample.barcodes);
+				System.out.println(sample.barcodes.size() + " barcodes found in barcode file " + sample.inputTFFile);
+			}
+			sample.pool = workers;
+			if(sample.logFile != null) sample.logFile = new File(sample.outputFolder + sample.logFile.getName()); // One log per library
+		}
+		
+		System.out.println("\n-2- |  Counting " + samples.size() + " libraries");
+		ArrayList<Future<CounterResult>> futures = new ArrayList<Future<CounterResult>>();
+		for(CounterConfig sample:samples)
+		{
+			futures.add(jobs.submit(() ->
+			{
+				new File(sample.outputFolder).mkdirs();
+				CounterResult result;
+				try(PrintStream out = new PrintStream(new FileOutputStream(sample.outputFolder + "Counter.summary.txt")))
+				{
+					sample.out = out;
+					result = new CounterEngine(sample).run();
+				}
+				System.out.println("Library " + sample.outputFolder + " was counted [" + Utils.toReadableTime(result.time) + "]");
+				return result;
+			}));
+		}
+		ArrayList<CounterResult> results = new ArrayList<CounterResult>();
+		ArrayList<String> failures = new ArrayList<String>(); // Null for the libraries that were counted
+		int nbFailed = 0;
+		try
+		{
+			for(int i = 0; i < futures.size(); i++)
+			{
+				try
+				{
+					results.add(futures.get(i).get());
+					failures.add(null);
+				}
+				catch(ExecutionException ee)
+				{
+					System.err.println("Library " + samples.get(i).outputFolder + " failed: " + ee.getCause().getMessage());
+					results.add(null);
+					failures.add(ee.getCause().getMessage());
+					nbFailed++;
+				}
+			}
+		}
+		catch(InterruptedException ie)
+		{
+			new ErrorMessage(ie.getMessage());
+		}
+		finally
+		{
+			jobs.shutdown();
+			if(workers != null) workers.shutdown();
+		}
+		
+		System.out.println("\n-3- |  Summary [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+		System.out.println("Output folder\tReads\tTF reads\tMatching R1\tCells\tTime");
+		for(int i = 0; i < samples.size(); i++)
+		{
+			CounterResult r = results.get(i);
+			if(r == null) System.out.println(samples.get(i).outputFolder + "\tFailed: " + failures.get(i));
+			else System.out.println(samples.get(i).outputFolder + "\t" + r.stats.nbReads + "\t" + r.nbMappedReads + "\t" + r.nbMatchingReads + "\t" + r.nbCells + "\t" + Utils.toReadableTime(r.time));
+		}
+		if(nbFailed > 0) new ErrorMessage(nbFailed + " of " + samples.size() + " libraries failed");
+	}
 }
-
@@ -14,8 +14,13 @@ public class Barcode
 	public String second;
 	public String name;
 	public String id;
+	public int index; // Position in the barcode file
 	
-	public static ArrayList<Barcode> readBarcodeFile(File filename)
+	/**
+	 * @param lBC1 expected length of barcode 1
+	 * @param lBC2 expected length of barcode 2
+	 */
+	public static ArrayList<Barcode> readBarcodeFile(File filename, int lBC1, int lBC2)
 	{
 		Set<String> unique_barcodes = new HashSet<String>();
 		ArrayList<Barcode> bc = new ArrayList<Barcode>();
@@ -29,12 +34,13 @@ public class Barcode
 				Barcode b = new Barcode();
 				b.name = tokens[0].trim();
 				b.id = tokens[1].trim();
-				if(unique_barcodes.contains(b.id)) new ErrorMessage("Barcode ID: " + b.id + " is not unique");
+				if(unique_barcodes.contains(b.id)) throw new CounterException("Barcode ID: " + b.id + " is not unique");
 				unique_barcodes.add(b.id);
 				b.first = tokens[2].toUpperCase().trim();
-				if(b.first.length() != Parameters.lBC1) new ErrorMessage("Barcode " + b.first + " is not of the correct length (" + Parameters.lBC1 + " )");
+				if(b.first.length() != lBC1) throw new CounterException("Barcode " + b.first + " is not of the correct length (" + lBC1 + " )");
 				b.second = tokens[3].toUpperCase().trim();
-				if(b.second.length() != Parameters.lBC2) new ErrorMessage("Barcode " + b.second + " is not of the correct length (" + Parameters.lBC2 + " )");
+				if(b.second.length() != lBC2) throw new CounterException("Barcode " + b.second + " is not of the correct length (" + lBC2 + " )");
+				b.index = bc.size();
 				bc.add(b);
 				line = br.readLine();
 			}
@@ -42,21 +48,11 @@ public class Barcode
 		}
 		catch(IOException ioe)
 		{
-			ioe.printStackTrace();
+			throw new CounterException(ioe.getMessage(), ioe);
 		}
 		return bc;
 	}
 	
-	public static HashSet<String> getUniqueBarcodes(ArrayList<Read> list) // TODO Handle sequencing mismatches
-	{
-		HashSet<String> barcodes = new HashSet<>();
-		for(Read r:list)
-		{
-			barcodes.add(r.barcode);
-		}
-		return barcodes;
-	}
-	
 	public static String construct(String a, int repeat)
 	{
 		StringBuffer sb = new StringBuffer();
@@ -0,0 +1,113 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+
+import tools.Metrics;
+
+/**
+ * Streaming aggregation of the TF reads: each read updates the cell barcode dictionary, the count matrix and the UMI accumulator, and is not kept.
+ * Cells are indexed by first occurrence while reading. The columns of the final matrices follow the iteration order of a HashSet of the cell barcodes, filled in the order of the reads, as before.
+ * Reads can be added out of order (e.g. by the sort-merge join) with their rank in the output order (e.g. their index in the R1 file): the matrices are then the same as if they were added in this order.
+ */
+public class CountAggregator
+{
+	private final HashMap<String, Integer> cellIndexes = new HashMap<String, Integer>();
+	private final ArrayList<String> cells = new ArrayList<String>(); // By cell index
+	private long[] firstRanks = new long[1024]; // Cell index => rank of its first read
+	private final SparseCountMatrix counts = new SparseCountMatrix();
+	private final UMIAccumulator umis;
+	private long nbReads = 0;
+	private int[] columns = null; // Cell index => column index, computed once all reads are added
+
+	public CountAggregator(int nbTFs, int umiLength)
+	{
+		this.umis = new UMIAccumulator(nbTFs, umiLength);
+	}
+
+	/**
+	 * @param tf index of the TF barcode
+	 * @param cellBarcode cell barcode of the read (null if there is no barcode in the pattern)
+	 * @param umi UMI of the read (null if there is no UMI in the pattern)
+	 */
+	public void add(int tf, String cellBarcode, String umi)
+	{
+		add(tf, cellBarcode, umi, nbReads);
+	}
+
+	/**
+	 * Same as add(tf, cellBarcode, umi), for a read added out of order (all the reads of a run should then be added with a rank)
+	 * @param rank position of the read in the order of the output
+	 */
+	public void add(int tf, String cellBarcode, String umi, long rank)
+	{
+		Integer cell = cellIndexes.get(cellBarcode);
+		if(cell == null)
+		{
+			cell = cells.size();
+			cellIndexes.put(cellBarcode, cell);
+			cells.add(cellBarcode);
+			if(cell == firstRanks.length) firstRanks = Arrays.copyOf(firstRanks, cell * 2);
+			firstRanks[cell] = rank;
+		}
+		else if(rank < firstRanks[cell]) firstRanks[cell] = rank;
+		counts.add(tf, cell);
+		umis.add(tf, cell, umi, rank);
+		nbReads++;
+	}
+
+	/**
+	 * Number of TF reads added
+	 */
+	public long getNbReads()
+	{
+		return nbReads;
+	}
+
+	public int getNbCells()
+	{
+		return cells.size();
+	}
+
+	/**
+	 * @return the cell barcodes, in the order of the columns
+	 */
+	public ArrayList<String> getCells()
+	{
+		Integer[] byRank = new Integer[cells.size()];
+		for(int i = 0; i < byRank.length; i++) byRank[i] = i;
+		Arrays.sort(byRank, (a, b) -> Long.compare(firstRanks[a], firstRanks[b]));
+		HashSet<String> unique = new HashSet<String>(); // Same insertion order as the reads => same iteration order as a HashSet filled with the reads
+		for(Integer cell:byRank) unique.add(cells.get(cell));
+		ArrayList<String> ordered = new ArrayList<String>(unique);
+		if(columns == null)
+		{
+			columns = new int[cells.size()];
+			for(int i = 0; i < ordered.size(); i++) columns[cellIndexes.get(ordered.get(i))] = i;
+		}
+		return ordered;
+	}
+
+	/**
+	 * @return the number of reads of each (TF, column)
+	 */
+	public SparseCountMatrix getCounts()
+	{
+		getCells();
+		return counts.remapCells(columns);
+	}
+
+	/**
+	 * @return the number of UMIs of each (TF, column), after correction
+	 * @param workers shared pool of nbThreads workers, or null to start a new one
+	 * @param stage where the time of the correction is added, or null
+	 */
+	public SparseCountMatrix getCorrectedUMIs(int maxDistance, int nbThreads, ExecutorService workers, Metrics.Stage stage)
+	{
+		getCells();
+		return umis.getCorrectedSizes(maxDistance, nbThreads, workers, stage).remapCells(columns);
+	}
+}
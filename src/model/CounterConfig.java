@@ -0,0 +1,209 @@
+package model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+
+import tools.ClassificationCache;
+import tools.Logger;
+import tools.TFBarcodes;
+
+/**
+ * All the settings of one counting run (see tools.CounterEngine), with the same defaults as the 'Counter' options.
+ * Each run has its own instance, so that several runs can happen at the same time in one JVM. Call prepare() once the fields are set.
+ */
+public class CounterConfig
+{
+	// Input/output files
+	public File inputFastQFileR1 = null; // null with cellTag
+	public File inputBAMFileR2 = null; // Or the raw R2 FastQ file, with inputVectorFasta
+	public File inputTFFile = null;
+	public File referenceFasta = null; // Reference of a CRAM file
+	public File inputVectorFasta = null; // If set, the barcodes are located in the raw R2 reads from the constant sequences of this vector
+	public String outputFolder = null; // null for not writing the matrices (they are in the CounterResult)
+	public File logFile = null;
+	public int logSampling = Logger.DEFAULT_SAMPLING; // One per-read line of the log every N reads, 0 for the counts only
+	public String outputFormat = "tsv"; // tsv (dense Results.Matrix*.txt), mtx (sparse Results.Matrix*/ folders) or both
+
+	// Barcodes (positions in the reference, or in the vector)
+	public int startBC1 = 3409;
+	public int endBC1 = 3419;
+	public int startBC2 = 3447;
+	public int endBC2 = 3454;
+
+	// Cell barcode and UMI in R1 (or in the BAM tags)
+	public String barcodePattern = "BU";
+	public int l1 = -1; // -1 = 16 if the pattern contains 'B'
+	public int UMILength = -1; // -1 = 12 if the pattern contains 'U'
+	public int hammingDistanceUMI = 0;
+	public String cellTag = null; // If set, cell barcodes and UMIs are read from these BAM tags instead of the R1 FastQ file
+	public String umiTag = "UB";
+
+	// Execution
+	public int nbThreads = 1;
+	public int nbInflateThreads = 0; // 0 = BAM decompressed by htsjdk, on the reading thread
+	public boolean lockstepJoin = false;
+	public boolean regionQuery = false; // Only the records overlapping the barcode windows are read, through the index of the BAM/CRAM file
+	public long chunkSize = 1000000; // For printing
+	public long memoryBudget = 0; // Bytes for the sort-merge join of R1 and R2 (SortMergeJoin), 0 for the in-memory hash join (ReadNameTable)
+	public int cacheSize = ClassificationCache.DEFAULT_SIZE; // Slots of the cache of the barcode windows, 0 for no cache
+	public boolean barcodeQuality = false; // Mean sequencing quality of the bases placed in the barcode windows, instead of the whole read
+	public PrintStream out = System.out; // Progress and summary
+	public ExecutorService pool = null; // Workers shared with other runs (nbThreads of them), or null for a pool per run
+	public TFBarcodes barcodes = null; // TF barcodes and their lookups shared with other runs, or null for reading inputTFFile
+
+	// Computed by prepare()
+	public int lBC1 = -1;
+	public int lBC2 = -1;
+	public int lengthBarcode = 0;
+	public int[] barcodeRange = new int[2];
+	public int[] UMIRange = new int[2];
+
+	/**
+	 * Applies the default lengths, checks the options, and computes the positions of the cell barcode and UMI in the R1 reads (from the pattern)
+	 */
+	public void prepare()
+	{
+		if(inputFastQFileR1 == null && cellTag == null) throw new CounterException("No R1 FastQ file with barcode/UMI information (nor BAM tags to read them from)");
+		if(inputBAMFileR2 == null) throw new CounterException("No R2 file (aligned BAM file, or R2 FastQ file with a vector)");
+		if(inputTFFile == null && barcodes == null) throw new CounterException("No TF barcode file");
+		if(cellTag != null && lockstepJoin) throw new CounterException("The '--lockstep' option joins the R1 FastQ file, it cannot be used with '--cellTag'");
+		if(regionQuery && lockstepJoin) throw new CounterException("The '--region' option reads a coordinate-sorted BAM file, it cannot be joined in lockstep with the R1 FastQ file");
+		if(regionQuery && inputVectorFasta != null) throw new CounterException("The '--region' option queries the index of an aligned BAM file, it cannot be used with '--vector'");
+		if(barcodeQuality && inputVectorFasta != null) throw new CounterException("The '--barcodeQuality' option places the bases of an aligned BAM file on the barcode windows, it cannot be used with '--vector'");
+		if(cellTag != null && inputVectorFasta != null) throw new CounterException("The '--cellTag' option reads the tags of an aligned BAM file, it cannot be used with '--vector'");
+		if(logSampling < 0) throw new CounterException("The log sampling should be a positive Integer (or 0 for the counts only)");
+		if(memoryBudget < 0) throw new CounterException("The memory budget of the join should be a positive number of bytes (or 0 for the hash join)");
+		if(cacheSize < 0) throw new CounterException("The cache size should be a positive Integer (or 0 for no cache)");
+		if(startBC1 >= endBC1) throw new CounterException("--startBC1 (" + startBC1 + ") must be strictly less than --endBC1 (" + endBC1 + ")");
+		if(startBC2 >= endBC2) throw new CounterException("--startBC2 (" + startBC2 + ") must be strictly less than --endBC2 (" + endBC2 + ")");
+		lBC1 = endBC1 - startBC1 + 1;
+		lBC2 = endBC2 - startBC2 + 1;
+		if(cellTag != null)
+		{
+			if(UMILength == -1) UMILength = 0; // Length taken from the first UMI
+			return;
+		}
+		if(barcodePattern.contains("B") && l1 == -1) l1 = 16;
+		if(!barcodePattern.contains("B") && l1 != -1) throw new CounterException("Your barcode pattern does not contain any 'B' but you used the '--BC' option to specify a barcode length. Remove the '--BC' option, or change your barcode pattern.");
+		if(barcodePattern.contains("U") && UMILength == -1) UMILength = 12;
+		if(UMILength != -1 && !barcodePattern.contains("U")) throw new CounterException("You specified a UMI length but your barcode pattern does not contain 'U', you should specify where to find the UMI in R1");
+
+		// Parsing the barcode pattern and check validity
+		lengthBarcode = 0;
+		for(int j = 0; j < barcodePattern.length(); j++)
+		{
+			char c = barcodePattern.charAt(j);
+			switch(c)
+			{
+				case 'B':
+					barcodeRange[0] = lengthBarcode;
+					lengthBarcode += l1;
+					barcodeRange[1] = lengthBarcode;
+					break;
+				case 'U':
+					UMIRange[0] = lengthBarcode;
+					lengthBarcode += UMILength;
+					UMIRange[1] = lengthBarcode;
+					break;
+				case '?':
+					lengthBarcode++;
+					break;
+				default:
+					throw new CounterException(c+" does not correspond to any authorized pattern character (?, B, U). Aborted.");
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of these settings (the shared pool and TF barcodes are not copied, but shared)
+	 */
+	public CounterConfig copy()
+	{
+		CounterConfig c = new CounterConfig();
+		c.inputFastQFileR1 = inputFastQFileR1;
+		c.inputBAMFileR2 = inputBAMFileR2;
+		c.inputTFFile = inputTFFile;
+		c.referenceFasta = referenceFasta;
+		c.inputVectorFasta = inputVectorFasta;
+		c.outputFolder = outputFolder;
+		c.logFile = logFile;
+		c.logSampling = logSampling;
+		c.outputFormat = outputFormat;
+		c.startBC1 = startBC1;
+		c.endBC1 = endBC1;
+		c.startBC2 = startBC2;
+		c.endBC2 = endBC2;
+		c.barcodePattern = barcodePattern;
+		c.l1 = l1;
+		c.UMILength = UMILength;
+		c.hammingDistanceUMI = hammingDistanceUMI;
+		c.cellTag = cellTag;
+		c.umiTag = umiTag;
+		c.nbThreads = nbThreads;
+		c.nbInflateThreads = nbInflateThreads;
+		c.lockstepJoin = lockstepJoin;
+		c.regionQuery = regionQuery;
+		c.chunkSize = chunkSize;
+		c.cacheSize = cacheSize;
+		c.barcodeQuality = barcodeQuality;
+		c.memoryBudget = memoryBudget;
+		c.out = out;
+		c.pool = pool;
+		c.barcodes = barcodes;
+		return c;
+	}
+
+	/**
+	 * Reads a tab-separated sample sheet, one library per line: R1 FastQ file, R2 BAM file, TF barcode file, output folder.
+	 * Empty lines, lines starting with '#' and a header line starting with 'R1' are ignored. The R1 file can be '-' with '--cellTag'.
+	 * @param settings the settings shared by all libraries
+	 * @return a copy of the settings for each library
+	 */
+	public static ArrayList<CounterConfig> readSampleSheet(File sheet, CounterConfig settings)
+	{
+		ArrayList<CounterConfig> samples = new ArrayList<CounterConfig>();
+		try
+		{
+			BufferedReader br = new BufferedReader(new FileReader(sheet));
+			String line = br.readLine();
+			int l = 0;
+			while(line != null)
+			{
+				l++;
+				if(!line.trim().isEmpty() && !line.startsWith("#") && !(l == 1 && line.toUpperCase().startsWith("R1")))
+				{
+					String[] tokens = line.split("\t");
+					if(tokens.length != 4) throw new CounterException("Line " + l + " of the sample sheet should have 4 tab-separated columns (R1, R2, TF file, output folder): " + line);
+					CounterConfig s = settings.copy();
+					s.inputFastQFileR1 = tokens[0].equals("-") ? null : checkFile(tokens[0], l);
+					s.inputBAMFileR2 = checkFile(tokens[1], l);
+					s.inputTFFile = checkFile(tokens[2], l);
+					s.outputFolder = tokens[3].replaceAll("\\\\", "/");
+					if(!s.outputFolder.endsWith("/")) s.outputFolder += "/";
+					if(s.inputFastQFileR1 == null && s.cellTag == null) throw new CounterException("Line " + l + " of the sample sheet has no R1 FastQ file (only possible with '--cellTag')");
+					samples.add(s);
+				}
+				line = br.readLine();
+			}
+			br.close();
+		}
+		catch(IOException ioe)
+		{
+			throw new CounterException(ioe.getMessage(), ioe);
+		}
+		if(samples.isEmpty()) throw new CounterException("No sample found in the sample sheet " + sheet.getAbsolutePath());
+		return samples;
+	}
+
+	private static File checkFile(String path, int l)
+	{
+		File f = new File(path);
+		if(!f.isFile()) throw new CounterException("No file at path " + path + " (line " + l + " of the sample sheet)");
+		return f;
+	}
+}
@@ -0,0 +1,19 @@
+package model;
+
+/**
+ * Invalid input or I/O failure of one counting run (see tools.CounterEngine): ends this run only. The command line tools print it through ErrorMessage.
+ */
+public class CounterException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	public CounterException(String message)
+	{
+		super(message);
+	}
+
+	public CounterException(String message, Throwable cause)
+	{
+		super(message, cause);
+	}
+}
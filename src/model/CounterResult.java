@@ -0,0 +1,27 @@
+package model;
+
+import java.util.ArrayList;
+
+import tools.Metrics;
+
+/**
+ * Matrices and statistics of one counting run (see tools.CounterEngine)
+ */
+public class CounterResult
+{
+	// Matrices (non-empty entries only): TF index x column of the cell barcode
+	public ArrayList<Barcode> tfs = null;
+	public ArrayList<String> cells = null;
+	public SparseCountMatrix counts = null;
+	public SparseCountMatrix umis = null; // After UMI correction
+
+	// Statistics
+	public final ReadStatistics stats = new ReadStatistics(); // R2 pass
+	public int missingTag = 0; // TF reads without cell barcode or UMI tag
+	public long nbMappedReads = 0; // Consistently mapping to a TF
+	public long nbReadsR1 = 0;
+	public long nbMatchingReads = 0; // TF reads found in R1
+	public int nbCells = 0;
+	public long time = 0; // ms
+	public final Metrics metrics = new Metrics(); // Time, CPU and allocation of each stage (metrics.json)
+}
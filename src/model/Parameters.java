@@ -1,55 +1,50 @@
 package model;
 import java.io.File;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 
-import tools.Utils;
+import tools.ClassificationCache;
+import tools.Logger;
 
 enum Strand{NO, YES, REVERSE};
 
 public class Parameters 
 {
 	public static final String currentVersion = "1.2";
-	public static DecimalFormat myFormatter = new DecimalFormat("##.##");
 	
 	// Barcodes
 	public static int startBC1 = 3409; // Pos in fasta genome to align to (eTFs.consensus.fa)
 	public static int endBC1 = 3419;   // Pos in fasta genome to align to (eTFs.consensus.fa)
-	public static int lBC1 = -1;
 	public static int startBC2 = 3447; // Pos in fasta genome to align to (eTFs.consensus.fa)
 	public static int endBC2 = 3454;   // Pos in fasta genome to align to (eTFs.consensus.fa)
-	public static int lBC2 = -1;
-	public static int overlapBC1 = 0;
-	public static int overlapBC2 = 0;
-	public static int overlapBoth = 0;
-	public static ArrayList<Barcode> bc;
 	
-	// Input parameters
+	// Input parameters (files of the Counter tool)
 	public static String outputFolder = null;
 	public static File logFile = null;
+	public static int logSampling = Logger.DEFAULT_SAMPLING; // One per-read line of the log every N reads, 0 for the counts only
 	public static File inputTFFile = null;
 	public static File inputFastQFileR1 = null;
-	public static File inputBAMFileR2 = null;
+	public static File inputBAMFileR2 = null; // Or the raw R2 FastQ file, with '--vector'
+	public static File referenceFasta = null; // Reference of a CRAM file
+	public static File inputVectorFasta = null; // If set, the barcodes are located in the raw R2 reads from the constant sequences of this vector
 	public static long chunkSize = 1000000; // For printing
+	public static long memoryBudget = 0; // Bytes for the sort-merge join of R1 and R2, 0 for the in-memory hash join
+	public static int cacheSize = ClassificationCache.DEFAULT_SIZE; // Slots of the cache of the barcode windows, 0 for no cache
+	public static boolean barcodeQuality = false; // Mean sequencing quality of the bases placed in the barcode windows, instead of the whole read
+	public static int nbThreads = 1;
+	public static boolean lockstepJoin = false;
+	public static boolean regionQuery = false; // Only the records overlapping the barcode windows are read, through the index of the BAM/CRAM file
+	public static int nbInflateThreads = 0; // 0 = BAM decompressed by htsjdk, on the reading thread
+	public static String cellTag = null; // If set, cell barcodes and UMIs are read from these BAM tags instead of the R1 FastQ file
+	public static String umiTag = "UB";
+	public static String outputFormat = "tsv"; // tsv (dense Results.Matrix*.txt), mtx (sparse Results.Matrix*/ folders) or both
+	public static File sampleSheet = null; // Batch tool
+	public static int nbConcurrentSamples = 1;
 	
 	// Cell barcode in R1
 	public static String barcodePattern = "BU";
 	public static int hammingDistanceUMI = 0;
 	public static int UMILength = -1;
-	public static int lengthBarcode = 0;
 	public static int l1 = -1;
-	public static int[] barcodeRange = new int[2];
-	public static int[] UMIRange = new int[2];
-	
-	// Computed variables
-	public static int noFeature = 0;
-	public static int notUnique = 0;
-	public static int ambiguous = 0;
-	public static int mapped = 0;
-	public static int unmapped = 0;
-	public static int tooLowAQUAL = 0;
-	public static int tooLowSQUAL = 0;
-	public static long nbReads = 0;
 	
 	public static void loadCounter(String[] args)
 	{
@@ -58,6 +53,93 @@ public class Parameters
 			printHelpCounter();
 			System.exit(0);
 		}
+		parseCounterOptions(args);
+		if(inputFastQFileR1 == null && cellTag == null)
+		{
+			new ErrorMessage("Please use '--r1' option to specify R1 FastQ file with barcode/UMI information (or '--cellTag' if they are tags of the BAM file)");
+		}
+		if(inputBAMFileR2 == null)
+		{
+			new ErrorMessage("Please use '--r2' option to specify the path of the aligned BAM file (or of the R2 FastQ file, with '--vector')");
+		}
+		if(inputTFFile == null) 
+		{
+			new ErrorMessage("Please use '--tf' option to specify the path of the TF barcodes to use");
+		}
+		checkCounterOptions();
+		if(outputFolder == null)
+		{
+			String path = inputBAMFileR2.getAbsolutePath();
+			path = path.replaceAll("\\\\", "/");
+			path = path.substring(0, path.lastIndexOf("/"));
+			outputFolder = path;
+		}
+		outputFolder = outputFolder.replaceAll("\\\\", "/");
+		if(!outputFolder.endsWith("/")) outputFolder+= "/";
+		new File(outputFolder).mkdirs();
+		printRunOptions();
+		System.out.println("Output folder = " + Parameters.outputFolder + ". Use '-o' option to change.");
+	}
+	
+	/**
+	 * Same options as the Counter tool, except the files of each library, which are given by the sample sheet
+	 */
+	public static void loadBatch(String[] args)
+	{
+		if(args.length == 0)
+		{
+			printHelpBatch();
+			System.exit(0);
+		}
+		ArrayList<String> counterArgs = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++) 
+		{
+			switch(args[i])
+			{
+				case "--samples":
+					i++;
+					try
+					{
+						File c = new File(args[i]);
+						if(!c.exists()) new ErrorMessage("No file at path " + args[i]);
+						if(!c.isFile()) new ErrorMessage(args[i] + " is not a file");
+						sampleSheet = c;
+					}
+					catch(Exception e)
+					{
+						new ErrorMessage("The '--samples' option should be followed by the sample sheet path. " + e.getMessage() + ". You entered " + args[i]);
+					}
+					break;
+				case "--jobs":
+					i++;
+					try
+					{
+						nbConcurrentSamples = Integer.parseInt(args[i]);
+						if(nbConcurrentSamples < 1) new ErrorMessage("The '--jobs' option should be a positive Integer. You entered " + args[i]);
+					}
+					catch(NumberFormatException nfe)
+					{
+						new ErrorMessage("The '--jobs' option should be followed by an Integer. You entered " + args[i]);
+					}
+					break;
+				default:
+					counterArgs.add(args[i]);
+			}
+		}
+		parseCounterOptions(counterArgs.toArray(new String[counterArgs.size()]));
+		if(sampleSheet == null) new ErrorMessage("Please use '--samples' option to specify the sample sheet (R1, R2, TF file and output folder of each library)");
+		if(inputFastQFileR1 != null || inputBAMFileR2 != null || inputTFFile != null || outputFolder != null)
+		{
+			new ErrorMessage("The '--r1', '--r2', '--tf' and '-o' options cannot be used with the Batch tool, the files of each library are given by the sample sheet");
+		}
+		checkCounterOptions();
+		printRunOptions();
+		System.out.println("Sample sheet = " + sampleSheet.getAbsolutePath());
+		System.out.println("Libraries counted at the same time = " + nbConcurrentSamples + ". Use '--jobs' option to change.");
+	}
+	
+	private static void parseCounterOptions(String[] args)
+	{
 		for(int i = 0; i < args.length; i++) 
 		{
 			if(args[i].startsWith("-"))
@@ -152,6 +234,119 @@ public class Parameters
 							new ErrorMessage("The '--r2' option should be followed by aligned BAM file path. " + e.getMessage() + ". You entered " + args[i]);
 						}
 						break;
+					case "--threads":
+						i++;
+						try
+						{
+							nbThreads = Integer.parseInt(args[i]);
+							if(nbThreads < 1) new ErrorMessage("The '--threads' option should be a positive Integer. You entered " + args[i]);
+						}
+						catch(NumberFormatException nfe)
+						{
+							new ErrorMessage("The '--threads' option should be followed by an Integer. You entered " + args[i]);
+						}
+						break;
+					case "--logSample":
+						i++;
+						try
+						{
+							logSampling = Integer.parseInt(args[i]);
+							if(logSampling < 0) new ErrorMessage("The '--logSample' option should be a positive Integer (or 0 for the counts only). You entered " + args[i]);
+						}
+						catch(NumberFormatException nfe)
+						{
+							new ErrorMessage("The '--logSample' option should be followed by an Integer. You entered " + args[i]);
+						}
+						break;
+					case "--memory":
+						i++;
+						try
+						{
+							long mb = Long.parseLong(args[i]);
+							if(mb <= 0) new ErrorMessage("The '--memory' option should be a strictly positive Integer (MB). You entered " + args[i]);
+							memoryBudget = mb * 1024 * 1024;
+						}
+						catch(NumberFormatException nfe)
+						{
+							new ErrorMessage("The '--memory' option should be followed by an Integer (MB). You entered " + args[i]);
+						}
+						break;
+					case "--cacheSize":
+						i++;
+						try
+						{
+							cacheSize = Integer.parseInt(args[i]);
+							if(cacheSize < 0) new ErrorMessage("The '--cacheSize' option should be a positive Integer (or 0 for no cache). You entered " + args[i]);
+						}
+						catch(NumberFormatException nfe)
+						{
+							new ErrorMessage("The '--cacheSize' option should be followed by an Integer. You entered " + args[i]);
+						}
+						break;
+					case "--inflateThreads":
+						i++;
+						try
+						{
+							nbInflateThreads = Integer.parseInt(args[i]);
+							if(nbInflateThreads < 0) new ErrorMessage("The '--inflateThreads' option should be a positive Integer. You entered " + args[i]);
+						}
+						catch(NumberFormatException nfe)
+						{
+							new ErrorMessage("The '--inflateThreads' option should be followed by an Integer. You entered " + args[i]);
+						}
+						break;
+					case "--lockstep":
+						lockstepJoin = true;
+						break;
+					case "--barcodeQuality":
+						barcodeQuality = true;
+						break;
+					case "--region":
+						regionQuery = true;
+						break;
+					case "--reference":
+						i++;
+						try
+						{
+							File c = new File(args[i]);
+							if(!c.exists()) new ErrorMessage("No file at path " + args[i]);
+							if(!c.isFile()) new ErrorMessage(args[i] + " is not a file");
+							referenceFasta = c;
+						}
+						catch(Exception e)
+						{
+							new ErrorMessage("The '--reference' option should be followed by the FASTA file of the reference of the CRAM file. " + e.getMessage() + ". You entered " + args[i]);
+						}
+						break;
+					case "--vector":
+						i++;
+						try
+						{
+							File c = new File(args[i]);
+							if(!c.exists()) new ErrorMessage("No file at path " + args[i]);
+							if(!c.isFile()) new ErrorMessage(args[i] + " is not a file");
+							inputVectorFasta = c;
+						}
+						catch(Exception e)
+						{
+							new ErrorMessage("The '--vector' option should be followed by the FASTA file of the vector. " + e.getMessage() + ". You entered " + args[i]);
+						}
+						break;
+					case "--cellTag":
+						i++;
+						cellTag = args[i];
+						if(cellTag.length() != 2) new ErrorMessage("The '--cellTag' option should be followed by a SAM tag name (2 characters, e.g. CB or CR). You entered " + args[i]);
+						break;
+					case "--umiTag":
+						i++;
+						umiTag = args[i];
+						if(umiTag.length() != 2) new ErrorMessage("The '--umiTag' option should be followed by a SAM tag name (2 characters, e.g. UB or UR). You entered " + args[i]);
+						break;
+					case "--format":
+						i++;
+						outputFormat = args[i].toLowerCase();
+						if(!outputFormat.equals("tsv") && !outputFormat.equals("mtx") && !outputFormat.equals("both")) new ErrorMessage("The '--format' option should be 'tsv', 'mtx' or 'both'. You entered " + args[i]);
+						break;
 					case "--log":
 						i++;
 						try
@@ -227,17 +422,20 @@ public class Parameters
 				}
 			}
 		}
-		if(inputFastQFileR1 == null)
-		{
-			new ErrorMessage("Please use '--r1' option to specify R1 FastQ file with barcode/UMI information");
-		}
-		if(inputBAMFileR2 == null)
+	}
+	
+	/**
+	 * Checks the options shared by all libraries, and prints them
+	 */
+	private static void checkCounterOptions()
+	{
+		if(cellTag != null && lockstepJoin)
 		{
-			new ErrorMessage("Please use '--r2' option to specify the path of the aligned BAM file");
+			new ErrorMessage("The '--lockstep' option joins the R1 FastQ file, it cannot be used with '--cellTag'");
 		}
-		if(inputTFFile == null) 
+		if(cellTag != null && inputVectorFasta != null)
 		{
-			new ErrorMessage("Please use '--tf' option to specify the path of the TF barcodes to use");
+			new ErrorMessage("The '--cellTag' option reads the tags of an aligned BAM file, it cannot be used with '--vector'");
 		}
 		if(startBC1 >= endBC1)
 		{
@@ -248,58 +446,124 @@ public class Parameters
 			new ErrorMessage("--startBC2 (" + startBC2 + ") must be strictly less than --endBC2 (" + endBC2 + ")");
 		}
 		System.out.println("\n-- Input Parameters --");
-		System.out.println("Cell barcodes (in R1 fastq file):");
-		System.out.println(" \tPattern = '" + barcodePattern + "'");
-		if(barcodePattern.contains("B"))
+		if(cellTag != null)
 		{
-			if(l1 == -1)
-			{
-				l1 = 16;
-				System.out.println("\tCell barcode sequence length = '"+l1+"' [default to 10x protocol v3, use '--BC' option to change]");
-			}
-			else System.out.println("\tCell barcode sequence length = '"+l1+"'");
+			System.out.println("Cell barcodes and UMIs (in R2 bam file tags):");
+			System.out.println("\tCell barcode tag = '" + cellTag + "'");
+			System.out.println("\tUMI tag = '" + umiTag + "'");
+			if(inputFastQFileR1 != null) System.out.println("\tR1 FastQ file is not used.");
+			if(UMILength == -1) UMILength = 0; // Length taken from the first UMI
 		}
-		else 
+		else
 		{
-			if(l1 != -1) new ErrorMessage("Your barcode pattern does not contain any 'B' but you used the '--BC' option to specify a barcode length. Remove the '--BC' option, or change your barcode pattern.");
-		}
-		if(barcodePattern.contains("U"))
-		{
-			if(UMILength == -1)
+			System.out.println("Cell barcodes (in R1 fastq file):");
+			System.out.println(" \tPattern = '" + barcodePattern + "'");
+			if(barcodePattern.contains("B"))
+			{
+				if(l1 == -1)
+				{
+					l1 = 16;
+					System.out.println("\tCell barcode sequence length = '"+l1+"' [default to 10x protocol v3, use '--BC' option to change]");
+				}
+				else System.out.println("\tCell barcode sequence length = '"+l1+"'");
+			}
+			else 
 			{
-				UMILength = 12;
-				System.out.println("\tUMI sequence length = '"+UMILength+"' [default to 10x protocol v3, use '--UMI' option to change]");
+				if(l1 != -1) new ErrorMessage("Your barcode pattern does not contain any 'B' but you used the '--BC' option to specify a barcode length. Remove the '--BC' option, or change your barcode pattern.");
 			}
-			else System.out.println("\tUMI sequence length = '"+UMILength+"'");
+			if(barcodePattern.contains("U"))
+			{
+				if(UMILength == -1)
+				{
+					UMILength = 12;
+					System.out.println("\tUMI sequence length = '"+UMILength+"' [default to 10x protocol v3, use '--UMI' option to change]");
+				}
+				else System.out.println("\tUMI sequence length = '"+UMILength+"'");
 
+			}
+			if(UMILength != -1 && !barcodePattern.contains("U"))
+			{
+				new ErrorMessage("You specified a UMI length but your barcode pattern does not contain 'U', you should specify where to find the UMI in R1");
+			}
+			int lengthBarcode = 0;
+			for(char c:barcodePattern.toCharArray())
+			{
+				switch(c)
+				{
+					case 'B': lengthBarcode += l1; break;
+					case 'U': lengthBarcode += UMILength; break;
+					case '?': lengthBarcode++; break;
+					default: new ErrorMessage(c+" does not correspond to any authorized pattern character (?, B, U). Aborted.");
+				}
+			}
+			System.out.println("\tAccording to barcode pattern, reads of R1 FastQ file should contain "+lengthBarcode+" characters.");
 		}
-		if(UMILength != -1 && !barcodePattern.contains("U"))
+		if(inputVectorFasta != null)
 		{
-			new ErrorMessage("You specified a UMI length but your barcode pattern does not contain 'U', you should specify where to find the UMI in R1");
+			System.out.println("TF barcodes (searched for in R2 fastq file, around their constant sequences in the vector):");
+			System.out.println("\tVector = " + inputVectorFasta);
 		}
-		Utils.patterning();
-		System.out.println("TF barcodes (searched for in R2 bam file):");
-		System.out.println("\tReference TF file = " + inputTFFile);
-		// Handle barcodes
-		Parameters.lBC1 = Parameters.endBC1 - Parameters.startBC1 + 1;
-		Parameters.lBC2 = Parameters.endBC2 - Parameters.startBC2 + 1;
-		System.out.println("\tBarcode 1 is searched for at pos [" + Parameters.startBC1 + ", " + Parameters.endBC1 + "],  l = " + Parameters.lBC1 + (isDefaultBC1() ? " [default]" : ""));
-		System.out.println("\tBarcode 2 is searched for at pos [" + Parameters.startBC2 + ", " + Parameters.endBC2 + "],  l = " + Parameters.lBC2 + (isDefaultBC2() ? " [default]" : ""));
-		
-		if(outputFolder == null)
+		else System.out.println("TF barcodes (searched for in R2 bam file):");
+		if(inputTFFile != null) System.out.println("\tReference TF file = " + inputTFFile);
+		System.out.println("\tBarcode 1 is searched for at pos [" + startBC1 + ", " + endBC1 + "],  l = " + (endBC1 - startBC1 + 1) + (isDefaultBC1() ? " [default]" : ""));
+		System.out.println("\tBarcode 2 is searched for at pos [" + startBC2 + ", " + endBC2 + "],  l = " + (endBC2 - startBC2 + 1) + (isDefaultBC2() ? " [default]" : ""));
+	}
+	
+	/**
+	 * @return the settings of a run with the options given on the command line (see tools.CounterEngine)
+	 */
+	public static CounterConfig toCounterConfig()
+	{
+		CounterConfig config = new CounterConfig();
+		config.inputFastQFileR1 = inputFastQFileR1;
+		config.inputBAMFileR2 = inputBAMFileR2;
+		config.inputTFFile = inputTFFile;
+		config.referenceFasta = referenceFasta;
+		config.inputVectorFasta = inputVectorFasta;
+		config.outputFolder = outputFolder;
+		config.logFile = logFile;
+		config.logSampling = logSampling;
+		config.outputFormat = outputFormat;
+		config.startBC1 = startBC1;
+		config.endBC1 = endBC1;
+		config.startBC2 = startBC2;
+		config.endBC2 = endBC2;
+		config.barcodePattern = barcodePattern;
+		config.l1 = l1;
+		config.UMILength = UMILength;
+		config.hammingDistanceUMI = hammingDistanceUMI;
+		config.cellTag = cellTag;
+		config.umiTag = umiTag;
+		config.nbThreads = nbThreads;
+		config.nbInflateThreads = nbInflateThreads;
+		config.lockstepJoin = lockstepJoin;
+		config.regionQuery = regionQuery;
+		config.chunkSize = chunkSize;
+		config.cacheSize = cacheSize;
+		config.barcodeQuality = barcodeQuality;
+		config.memoryBudget = memoryBudget;
+		return config;
+	}
+	
+	private static void printRunOptions()
+	{
+		if(logFile == null) System.out.println("Log File = NONE (specify a log file using option --log)");
+		else
 		{
-			String path = inputBAMFileR2.getAbsolutePath();
-			path = path.replaceAll("\\\\", "/");
-			path = path.substring(0, path.lastIndexOf("/"));
-			outputFolder = path;
+			System.out.println("Log File = " + logFile.getAbsolutePath());
+			if(logSampling == 0) System.out.println("Log: counts by barcode combination only. Use '--logSample' option to change.");
+			else if(logSampling > 1) System.out.println("Log: one line every " + logSampling + " reads, and counts by barcode combination. Use '--logSample' option to change.");
 		}
-		outputFolder = outputFolder.replaceAll("\\\\", "/");
-		if(!outputFolder.endsWith("/")) outputFolder+= "/";
-		new File(outputFolder).mkdirs();
-		if(logFile == null) System.out.println("Log File = NONE (specify a log file using option --log)");
-		else System.out.println("Log File = " + logFile.getAbsolutePath());
 	
-		System.out.println("Output folder = " + Parameters.outputFolder + ". Use '-o' option to change.");
+		System.out.println("Threads = " + nbThreads + ". Use '--threads' option to change.");
+		if(nbInflateThreads > 0) System.out.println("BAM/FastQ decompression threads = " + nbInflateThreads);
+		if(lockstepJoin) System.out.println("R1 and R2 are joined in lockstep (same read order expected).");
+		if(regionQuery) System.out.println("Only the records overlapping the barcodes are read, through the index of the BAM/CRAM file.");
+		if(memoryBudget > 0) System.out.println("R1 and R2 are joined by sorted runs within " + memoryBudget / 1024 / 1024 + " MB (spilled in the output folder if needed).");
+		if(barcodeQuality) System.out.println("Reads are filtered on the mean sequencing quality of their bases in the barcode windows.");
+		if(cacheSize == 0) System.out.println("Cache of the barcode windows = NONE");
+		else System.out.println("Cache of the barcode windows = " + cacheSize + " entries. Use '--cacheSize' option to change.");
+		System.out.println("Output format = " + outputFormat + ". Use '--format' option to change.");
 	}
 
 	private static boolean isDefaultBC1() { return startBC1 == 3409 && endBC1 == 3419; }
@@ -308,8 +572,8 @@ public class Parameters
 	private static void printHelpCounter()
 	{
 		System.out.println("\n-- 'Counter' options --");
-		System.out.println("\t--r1 %s \t[Required] Path of R1 FastQ file.");
-		System.out.println("\t--r2 %s \t[Required] Path of R2 aligned BAM file [do not need to be sorted or indexed].");
+		System.out.println("\t--r1 %s \t[Required] Path of R1 FastQ file [not needed with '--cellTag'].");
+		System.out.println("\t--r2 %s \t[Required] Path of R2 aligned BAM file [do not need to be sorted or indexed], or of the raw R2 FastQ file with '--vector'.");
 		System.out.println("\t--tf %s \t[Required] File containing known TF barcodes");
 		System.out.println("\t-o %s \t\tOutput folder [default = folder of BAM file]");
 		System.out.println("\n-- Barcode position options --");
@@ -319,15 +583,38 @@ public class Parameters
 		System.out.println("\t--endBC2 %i \tEnd position of barcode 2 in the reference genome [default = 3454].");
 		System.out.println("\n-- Additional options --");
 		System.out.println("\t--log %i \tDetailed log file [default: None]");
+		System.out.println("\t--logSample %i \tWith '--log', write the outcome of one read every N reads (the log always ends with the number of reads of each outcome and barcode combination). 0 for the counts only [default = 1, i.e. all reads].");
+		System.out.println("\t--threads %i \tNumber of threads used for classifying the BAM records [default = 1].");
+		System.out.println("\t--inflateThreads %i \tNumber of threads used for decompressing the BAM file and the gzipped R1 FastQ file, read ahead of the parsing (BGZF blocks are inflated in parallel, plain gzip files on one background thread) [default = 0, i.e. no read-ahead].");
+		System.out.println("\t--cacheSize %i \tNumber of entries of the cache of the barcode windows: the outcome of the windows already seen is reused instead of matching them again. Fixed memory (a new pair of windows replaces the one in its slot), 0 for no cache [default = 65536].");
+		System.out.println("\t--lockstep \tJoin R1 and R2 while reading the BAM file, for BAM files in the same read order as the R1 FastQ file (e.g. unsorted STAR output). Falls back to the default join from the first read not found within the next million R1 reads; the results are the same as with the default join [default: off].");
+		System.out.println("\t--memory %i \tMemory budget (in MB) of the join of R1 and R2, for libraries whose read names do not fit in the heap: the R2 TF reads are sorted by read name, and if they do not fit in the budget, both R2 and R1 reads are written as sorted runs in the output folder and merged. Also used by '--lockstep' after an out-of-order read [default: None, i.e. the read names of the R2 TF reads are kept in a hash table].");
+		System.out.println("\t--region \tFor a coordinate-sorted and indexed BAM/CRAM file (.bai, .csi or .crai): only read the records overlapping the barcodes ('--startBC1' to '--endBC2'), through the index. The total and unmapped reads come from the index; not unique, too low AQual and too low SQual are then counted among the records of the barcodes only. Not compatible with '--lockstep' and '--vector' [default: off].");
+		System.out.println("\t--barcodeQuality \tFilter the reads on the mean sequencing quality (>= 10) of their bases placed in the barcode windows, instead of the whole read. Reads without bases in the windows are not filtered on quality. Not compatible with '--vector' [default: off].");
+		System.out.println("\t--reference %s \tFASTA file of the reference, for reading a CRAM file [default: None].");
+		System.out.println("\t--vector %s \tFASTA file of the TF vector (e.g. pSIN-TRE-TFs-3-HA-puroR_BC_final.fa). '--r2' is then the raw R2 FastQ file, no alignment is needed: the barcode windows ('--startBC1' to '--endBC2', positions in this FASTA file) are located from the constant sequences around them [default: None].");
+		System.out.println("\t--cellTag %s \tRead the cell barcodes from this tag of the BAM file (e.g. CB from STARsolo, or CR), instead of the R1 FastQ file. '--r1' is then not needed [default: None].");
+		System.out.println("\t--umiTag %s \tWith '--cellTag', read the UMIs from this tag of the BAM file (e.g. UR) [default = UB].");
+		System.out.println("\t--format %s \tOutput format of the count matrices: 'tsv' (dense Results.Matrix.txt and Results.Matrix.UMI.txt), 'mtx' (sparse 10x layout, i.e. gzipped matrix.mtx/barcodes.tsv/features.tsv in Results.Matrix/ and Results.Matrix.UMI/) or 'both' [default = tsv].");
 		System.out.println("\t--nu %i \tNumber of allowed difference (hamming distance) for two UMIs to be counted only once [default = 0].");
 		System.out.println("\t-p %s \t\tCell barcode pattern/order found in the reads of the R1 FastQ file. Barcode names should match the barcode file [default = 'BU', i.e. barcode followed by the UMI].\n\t\t\t\t'B' [Required] is used for specifying the barcode position.\n\t\t\t\t'U' can be used for specifying a UMI value position.\n\t\t\t\t'?' can be used to ignore specific nucleotides.");
 		System.out.println("\t--UMI %i \tIf your barcode pattern contains UMI ('U'), you should specify this parameter as the length of the UMI [e.g. 10x run is 10]");
 		System.out.println("\t--BC %i \tIf your barcode pattern contains Barcode ('B'), you should specify this parameter as the length of the barcode [e.g. 10x run is 16]");
 	}
 	
+	private static void printHelpBatch()
+	{
+		System.out.println("\n-- 'Batch' options --");
+		System.out.println("\t--samples %s \t[Required] Sample sheet: one library per line, with 4 tab-separated columns: R1 FastQ file ('-' with '--cellTag'), R2 BAM file, TF barcode file, output folder. Lines starting with '#' are ignored.");
+		System.out.println("\t--jobs %i \tNumber of libraries counted at the same time. They share the '--threads' workers, and the barcode lookups of their TF file [default = 1].");
+		System.out.println("\nAll 'Counter' options can be used (they apply to all libraries), except '--r1', '--r2', '--tf' and '-o'.");
+		System.out.println("The summary of each library is written in Counter.summary.txt, in its output folder (and its log, with '--log', in a file of the same name in its output folder).");
+	}
+	
 	public static void printHelp()
 	{
 		System.out.println("\n-- Options --");
 		System.out.println("\tCounter\t\tCount occurence of each TF in Drop-seq/10x R2 aligned BAM and R1 fastq");
+		System.out.println("\tBatch\t\tRun the Counter on all libraries of a sample sheet, in the same JVM");
 	}
 }
\ No newline at end of file
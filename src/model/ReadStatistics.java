@@ -0,0 +1,32 @@
+package model;
+
+/**
+ * Counters of the BAM pass. Each worker fills its own instance, and they are merged at the end.
+ */
+public class ReadStatistics
+{
+	public long nbReads = 0;
+	public int unmapped = 0;
+	public int notUnique = 0;
+	public int tooLowAQUAL = 0;
+	public int tooLowSQUAL = 0;
+	public int overlapBC1 = 0;
+	public int overlapBC2 = 0;
+	public int overlapBoth = 0;
+	public long cacheHits = 0; // Windows classified from the ClassificationCache
+	public long cacheMisses = 0;
+
+	public void add(ReadStatistics stats)
+	{
+		this.nbReads += stats.nbReads;
+		this.unmapped += stats.unmapped;
+		this.notUnique += stats.notUnique;
+		this.tooLowAQUAL += stats.tooLowAQUAL;
+		this.tooLowSQUAL += stats.tooLowSQUAL;
+		this.overlapBC1 += stats.overlapBC1;
+		this.overlapBC2 += stats.overlapBC2;
+		this.overlapBoth += stats.overlapBoth;
+		this.cacheHits += stats.cacheHits;
+		this.cacheMisses += stats.cacheMisses;
+	}
+}
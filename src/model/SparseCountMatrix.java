@@ -0,0 +1,141 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * Sparse TF x cell count matrix, only storing the non-empty entries (open addressing on the (cell, TF) pair).
+ */
+public class SparseCountMatrix
+{
+	private static final long EMPTY = -1;
+	private static final float LOAD_FACTOR = 0.7f;
+
+	private long[] keys; // cell << 32 | TF
+	private int[] counts;
+	private int mask;
+	private int size = 0;
+
+	public SparseCountMatrix()
+	{
+		allocate(1 << 12);
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		counts = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	public static long key(int tf, int cell)
+	{
+		return ((long)cell << 32) | tf;
+	}
+
+	public static int getTF(long key)
+	{
+		return (int)key;
+	}
+
+	public static int getCell(long key)
+	{
+		return (int)(key >>> 32);
+	}
+
+	public void add(int tf, int cell)
+	{
+		long key = key(tf, cell);
+		int i = find(key);
+		if(keys[i] == EMPTY)
+		{
+			keys[i] = key;
+			size++;
+		}
+		counts[i]++;
+		if(size > keys.length * LOAD_FACTOR) resize();
+	}
+
+	public void put(long key, int count)
+	{
+		int i = find(key);
+		if(keys[i] == EMPTY)
+		{
+			keys[i] = key;
+			size++;
+		}
+		counts[i] = count;
+		if(size > keys.length * LOAD_FACTOR) resize();
+	}
+
+	/**
+	 * Number of non-empty entries
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the keys of the non-empty entries, sorted by cell, then TF
+	 */
+	public long[] getSortedKeys()
+	{
+		long[] sorted = new long[size];
+		int n = 0;
+		for(long k:keys) if(k != EMPTY) sorted[n++] = k;
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	public int getCount(long key)
+	{
+		int i = find(key);
+		return keys[i] == EMPTY ? 0 : counts[i];
+	}
+
+	public int get(int tf, int cell)
+	{
+		return getCount(key(tf, cell));
+	}
+
+	/**
+	 * @return a copy of this matrix where the cell indexes are replaced by newIndexes[cell]
+	 */
+	public SparseCountMatrix remapCells(int[] newIndexes)
+	{
+		SparseCountMatrix result = new SparseCountMatrix();
+		for(int i = 0; i < keys.length; i++) if(keys[i] != EMPTY) result.put(key(getTF(keys[i]), newIndexes[getCell(keys[i])]), counts[i]);
+		return result;
+	}
+
+	/**
+	 * @return the slot of this key, or the empty slot where it should be inserted
+	 */
+	private int find(long key)
+	{
+		int i = hash(key) & mask;
+		while(keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+		return i;
+	}
+
+	private void resize()
+	{
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		allocate(keys.length * 2);
+		for(int j = 0; j < oldKeys.length; j++)
+		{
+			if(oldKeys[j] == EMPTY) continue;
+			int i = find(oldKeys[j]);
+			keys[i] = oldKeys[j];
+			counts[i] = oldCounts[j];
+		}
+	}
+
+	private static int hash(long key)
+	{
+		key *= 0x9E3779B97F4A7C15L;
+		return (int)(key ^ (key >>> 32));
+	}
+}
@@ -0,0 +1,294 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+
+import tools.Metrics;
+import tools.UMICorrector;
+
+/**
+ * Distinct UMIs of each (TF, cell) entry, stored as packed (cell, TF, UMI) longs in a primitive array that is sorted and deduplicated when full.
+ * Memory is proportional to the number of distinct molecules, and only the non-empty entries are corrected.
+ * UMIs that cannot be packed 2 bits per nucleotide (e.g. containing N) are kept as Strings, per entry.
+ * The rank of the first occurrence of each molecule is kept, so that UMIs are corrected in the iteration order of a HashSet<String> filled in the same order.
+ */
+public class UMIAccumulator
+{
+	private static final int INITIAL_CAPACITY = 1 << 16;
+	private static final int MIN_CELL_BITS = 20;
+
+	private int umiLength;
+	private int umiBits;
+	private final int tfBits;
+	private int cellBits; // 0 if the UMIs are too long to be packed with the TF and cell
+	private long[] keys = new long[INITIAL_CAPACITY];
+	private long[] ranks = new long[INITIAL_CAPACITY]; // First occurrence of the key
+	private int size = 0;
+	private int sorted = 0; // keys[0, sorted[ are sorted and distinct
+	private long nbAdded = 0;
+	private final HashMap<Long, HashMap<String, Long>> unpacked = new HashMap<Long, HashMap<String, Long>>(); // SparseCountMatrix key => UMIs that cannot be packed, with their first occurrence
+
+	/**
+	 * @param nbTFs number of TF barcodes
+	 * @param umiLength length of the UMIs, 0 if it is taken from the first UMI, or -1 if there is no UMI in the barcode pattern
+	 */
+	public UMIAccumulator(int nbTFs, int umiLength)
+	{
+		this.tfBits = 32 - Integer.numberOfLeadingZeros(Math.max(nbTFs - 1, 1));
+		setUMILength(umiLength);
+	}
+
+	private void setUMILength(int umiLength)
+	{
+		this.umiLength = umiLength;
+		this.umiBits = 2 * Math.max(umiLength, 0);
+		int bits = 63 - tfBits - umiBits; // Positive keys, for sorting
+		this.cellBits = bits >= MIN_CELL_BITS ? Math.min(bits, 31) : 0;
+	}
+
+	/**
+	 * @param rank position of the read in the order of the output (the first occurrence of each molecule is kept)
+	 */
+	public void add(int tf, int cell, String umi, long rank)
+	{
+		if(umiLength == 0 && nbAdded == 0 && umi != null) setUMILength(umi.length());
+		nbAdded++;
+		long code = umiLength <= 0 ? 0 : (cellBits == 0 || umi.length() != umiLength) ? -1 : UMICorrector.pack(umi);
+		if(code == -1 || cell >= (1L << cellBits))
+		{
+			long key = SparseCountMatrix.key(tf, cell);
+			HashMap<String, Long> umis = unpacked.get(key);
+			if(umis == null)
+			{
+				umis = new HashMap<String, Long>();
+				unpacked.put(key, umis);
+			}
+			umis.merge(umi, rank, Math::min);
+			return;
+		}
+		if(size == keys.length) compact();
+		keys[size] = ((long)cell << (tfBits + umiBits)) | ((long)tf << umiBits) | code;
+		ranks[size] = rank;
+		size++;
+	}
+
+	/**
+	 * Sorts and deduplicates the keys (keeping the first occurrence), and enlarges the arrays if they are still more than half full
+	 */
+	private void compact()
+	{
+		if(sorted == size && size <= keys.length / 2) return; // Nothing added since the last compaction
+		sort(sorted, size - 1); // Only the keys added since the last compaction
+		if(sorted > 0) // Merge with the sorted part
+		{
+			long[] mergedKeys = new long[keys.length];
+			long[] mergedRanks = new long[keys.length];
+			int i = 0, j = sorted, n = 0;
+			while(i < sorted || j < size)
+			{
+				int from = (j == size || (i < sorted && keys[i] <= keys[j])) ? i++ : j++;
+				mergedKeys[n] = keys[from];
+				mergedRanks[n++] = ranks[from];
+			}
+			keys = mergedKeys;
+			ranks = mergedRanks;
+		}
+		int n = 0;
+		for(int i = 0; i < size; i++)
+		{
+			if(n > 0 && keys[i] == keys[n - 1]) ranks[n - 1] = Math.min(ranks[n - 1], ranks[i]);
+			else
+			{
+				keys[n] = keys[i];
+				ranks[n++] = ranks[i];
+			}
+		}
+		size = n;
+		sorted = n;
+		if(size > keys.length / 2)
+		{
+			keys = Arrays.copyOf(keys, keys.length * 2);
+			ranks = Arrays.copyOf(ranks, ranks.length * 2);
+		}
+	}
+
+	/**
+	 * Quicksort of keys[from, to] (with their ranks)
+	 */
+	private void sort(int from, int to)
+	{
+		while(to - from > 16)
+		{
+			int mid = (from + to) >>> 1;
+			if(keys[mid] < keys[from]) swap(mid, from);
+			if(keys[to] < keys[from]) swap(to, from);
+			if(keys[to] < keys[mid]) swap(to, mid);
+			long pivot = keys[mid];
+			int i = from, j = to;
+			while(i <= j)
+			{
+				while(keys[i] < pivot) i++;
+				while(keys[j] > pivot) j--;
+				if(i <= j) swap(i++, j--);
+			}
+			if(j - from < to - i) // Recursion on the smaller part
+			{
+				sort(from, j);
+				from = i;
+			}
+			else
+			{
+				sort(i, to);
+				to = j;
+			}
+		}
+		for(int i = from + 1; i <= to; i++) // Insertion sort
+		{
+			for(int j = i; j > from && keys[j] < keys[j - 1]; j--) swap(j, j - 1);
+		}
+	}
+
+	private void swap(int i, int j)
+	{
+		long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+		long r = ranks[i]; ranks[i] = ranks[j]; ranks[j] = r;
+	}
+
+	/**
+	 * Number of distinct molecules
+	 */
+	public long size()
+	{
+		compact();
+		long total = size;
+		for(HashMap<String, Long> umis:unpacked.values()) total += umis.size();
+		return total;
+	}
+
+	/**
+	 * @return the number of UMIs of each non-empty (TF, cell) entry, after correction (computed on a pool of threads)
+	 * @param workers shared pool of nbThreads workers, or null to start a new one
+	 * @param stage where the time of the correction is added, or null
+	 */
+	public SparseCountMatrix getCorrectedSizes(int maxDistance, int nbThreads, ExecutorService workers, Metrics.Stage stage)
+	{
+		compact();
+
+		// Entries (runs of keys with the same cell and TF)
+		int nbPacked = 0;
+		int[] starts = new int[size + 1];
+		for(int i = 0; i < size; i++) if(i == 0 || (keys[i] >>> umiBits) != (keys[i - 1] >>> umiBits)) starts[nbPacked++] = i;
+		starts[nbPacked] = size;
+		final int nbEntries = nbPacked;
+		ArrayList<Long> unpackedOnly = new ArrayList<Long>(); // Entries with unpacked UMIs only
+		for(Long key:unpacked.keySet()) if(!containsEntry(key)) unpackedOnly.add(key);
+
+		int[] sizes = UMICorrector.correctAll(nbEntries + unpackedOnly.size(), e ->
+		{
+			if(e >= nbEntries) return correctedSize(0, 0, unpacked.get(unpackedOnly.get(e - nbEntries)), maxDistance);
+			return correctedSize(starts[e], starts[e + 1], unpacked.get(entryKey(keys[starts[e]])), maxDistance);
+		}, nbThreads, workers, stage);
+
+		SparseCountMatrix result = new SparseCountMatrix();
+		for(int e = 0; e < nbEntries; e++) result.put(entryKey(keys[starts[e]]), sizes[e]);
+		for(int e = 0; e < unpackedOnly.size(); e++) result.put(unpackedOnly.get(e), sizes[nbEntries + e]);
+		return result;
+	}
+
+	/**
+	 * Greedy correction of the UMIs of one entry (keys[from, to[ and the unpacked ones), in the iteration order of a HashSet<String>
+	 */
+	private int correctedSize(int from, int to, HashMap<String, Long> others, int maxDistance)
+	{
+		int n = to - from + (others == null ? 0 : others.size());
+		if(n < 2 || maxDistance == 0) return n;
+		long mask = (1L << umiBits) - 1;
+		String[] strings = new String[n];
+		long[] codes = new long[n];
+		long[] order = new long[n];
+		for(int i = from; i < to; i++)
+		{
+			codes[i - from] = keys[i] & mask;
+			order[i - from] = ranks[i];
+		}
+		if(others != null)
+		{
+			int i = to - from;
+			for(String umi:others.keySet())
+			{
+				strings[i] = umi;
+				order[i++] = others.get(umi);
+			}
+		}
+
+		// HashSet<String> order: hash bucket in the final table, then first occurrence
+		int capacity = 16;
+		while(n > capacity * 0.75) capacity *= 2;
+		Integer[] indexes = new Integer[n];
+		int[] buckets = new int[n];
+		for(int i = 0; i < n; i++)
+		{
+			indexes[i] = i;
+			int h = strings[i] != null ? strings[i].hashCode() : hashCode(codes[i]);
+			buckets[i] = (h ^ (h >>> 16)) & (capacity - 1);
+		}
+		Arrays.sort(indexes, (a, b) -> buckets[a] != buckets[b] ? Integer.compare(buckets[a], buckets[b]) : Long.compare(order[a], order[b]));
+
+		if(others == null)
+		{
+			long[] umis = new long[n];
+			for(int i = 0; i < n; i++) umis[i] = codes[indexes[i]];
+			return UMICorrector.correctedSize(umis, umiLength, maxDistance);
+		}
+		String[] umis = new String[n];
+		for(int i = 0; i < n; i++) umis[i] = strings[indexes[i]] != null ? strings[indexes[i]] : unpack(codes[indexes[i]]);
+		return UMICorrector.correctedSize(umis, maxDistance);
+	}
+
+	/**
+	 * @return String.hashCode() of the unpacked UMI
+	 */
+	private int hashCode(long code)
+	{
+		int h = 0;
+		for(int i = 0; i < umiLength; i++) h = 31 * h + "ACGT".charAt((int)((code >>> (2 * i)) & 3));
+		return h;
+	}
+
+	private String unpack(long code)
+	{
+		char[] umi = new char[umiLength];
+		for(int i = 0; i < umiLength; i++) umi[i] = "ACGT".charAt((int)((code >>> (2 * i)) & 3));
+		return new String(umi);
+	}
+
+	/**
+	 * @return the SparseCountMatrix key (TF, cell) of this packed key
+	 */
+	private long entryKey(long key)
+	{
+		int tf = (int)((key >>> umiBits) & ((1L << tfBits) - 1));
+		int cell = (int)(key >>> (tfBits + umiBits));
+		return SparseCountMatrix.key(tf, cell);
+	}
+
+	private boolean containsEntry(long entryKey)
+	{
+		int tf = SparseCountMatrix.getTF(entryKey);
+		long cell = SparseCountMatrix.getCell(entryKey);
+		if(cellBits == 0 || cell >= (1L << cellBits)) return false;
+		long prefix = (cell << tfBits) | tf;
+		int lo = 0, hi = size - 1; // Binary search of the first key of this entry
+		while(lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			long p = keys[mid] >>> umiBits;
+			if(p < prefix) lo = mid + 1;
+			else if(p > prefix) hi = mid - 1;
+			else return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,521 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+import htsjdk.samtools.AbstractBAMFileIndex;
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.CloseableIterator;
+import model.Barcode;
+import model.CountAggregator;
+import model.CounterConfig;
+import model.CounterException;
+import model.ReadStatistics;
+
+/**
+ * R2 pass on the aligned BAM file of a run (see CounterEngine)
+ */
+public class AnalyzeAlignedBAM 
+{	
+	/**
+	 * Using Picard to read the reads from the BAM file created by the alignment tool
+	 * @return the TF barcode of each read consistently mapping to a TF
+	 */
+	public static ReadNameTable readR2BAM(CounterEngine engine)
+	{
+		ReadNameTable result = new ReadNameTable();
+		readR2BAM(engine, (readName, bc) -> 
+		{
+			// Check duplicated read names
+			if(result.containsKey(readName)) throw new CounterException("Duplicated read names: " + readName);
+			
+			// Add to result if found
+			if(bc != null) result.put(readName, bc.index);
+		});
+		return result;
+	}
+	
+	/**
+	 * Reads the BAM file in a single pass, taking the cell barcode and UMI of each TF read from its tags (cellTag/umiTag), without the R1 FastQ file
+	 * @return the number of TF reads added to the aggregator
+	 */
+	public static long readTaggedBAM(CounterEngine engine, CountAggregator aggregator)
+	{
+		readR2BAM(engine, (readName, bc, cellBarcode, umi) -> 
+		{
+			if(bc == null) return;
+			if(cellBarcode == null || umi == null) engine.result.missingTag++; // Handler is called by the reading thread only
+			else aggregator.add(bc.index, cellBarcode, umi);
+		});
+		return aggregator.getNbReads();
+	}
+	
+	/**
+	 * Using Picard to read the reads from the BAM file created by the alignment tool
+	 * @param handler receives, in the order of the BAM file, the name of every read passing the filters, with its TF barcode (null if not consistently mapping to a TF)
+	 */
+	public static void readR2BAM(CounterEngine engine, BiConsumer<String, Barcode> handler)
+	{
+		readR2BAM(engine, (readName, bc, cellBarcode, umi) -> handler.accept(readName, bc));
+	}
+	
+	/**
+	 * Receives the classified records, in the order of the BAM file
+	 */
+	private interface RecordHandler
+	{
+		/**
+		 * @param bc TF barcode, or null if not consistently mapping to a TF
+		 * @param cellBarcode value of the cell barcode tag (only in tag mode, and for TF reads), or null if missing
+		 * @param umi value of the UMI tag (only in tag mode, and for TF reads), or null if missing
+		 */
+		void accept(String readName, Barcode bc, String cellBarcode, String umi);
+	}
+	
+	/**
+	 * Using Picard to read the reads from the BAM file created by the alignment tool
+	 * The records are read by the calling thread and classified by batches in a pool of workers (see BatchPipeline)
+	 * @param handler receives, in the order of the BAM file, every read passing the filters
+	 */
+	private static void readR2BAM(CounterEngine engine, RecordHandler handler)
+	{
+		CounterConfig config = engine.config;
+		File inputBAMFile = config.inputBAMFileR2;
+		ReadStatistics stats = engine.result.stats;
+		Long start = System.currentTimeMillis();
+		engine.log.write("\nReading the reads from the BAM file...\n");
+		try
+		{
+			// BAM file read sequentially: records are copied as raw bytes, and decoded by the workers (RawBAMRecord). BGZF blocks are inflated in parallel if nbInflateThreads > 0
+			BAMStreamReader rawReader = !config.regionQuery && BAMStreamReader.isBGZF(inputBAMFile) ? new BAMStreamReader(inputBAMFile, config.nbInflateThreads) : null;
+			
+			// SAM/CRAM files, and index queries
+			SamReader samReader = rawReader == null ? openSamReader(config) : null;
+			long[] indexCounts = config.regionQuery ? new long[3] : null; // With '--region': records and unmapped records of the whole file, and compressed bytes of the query
+			CloseableIterator<SAMRecord> it = samReader == null ? null : config.regionQuery ? queryBarcodes(samReader, config, indexCounts) : samReader.iterator();
+	
+			// Read the BAM file by batches
+			BatchPipeline.Reader<RecordBatch> reader = rawReader != null ? batch -> batch.add(rawReader) : batch -> batch.add(it);
+			try
+			{
+				BatchPipeline.run(engine, "BAM file", start, () -> new RecordBatch(engine, rawReader != null), reader, batch -> 
+				{
+					for(int i = 0; i < batch.size; i++) if(batch.readNames[i] != null) handler.accept(batch.readNames[i], batch.barcodes[i], batch.cellBarcodes[i], batch.umis[i]); // Passed the filters
+				});
+			}
+			finally // Also if the run fails, so that a Batch can go on with the other libraries
+			{
+				if(rawReader != null) rawReader.close();
+				else it.close();
+				if(samReader != null) samReader.close();
+			}
+			Metrics.Stage decode = engine.metrics.get(Metrics.DECODE);
+			if(indexCounts != null && indexCounts[0] == 0 && stats.nbReads > 0) config.out.println("The index has no read counts (e.g. .crai index of a CRAM file): the total and unmapped reads are counted among the records overlapping the barcodes only.");
+			else if(indexCounts != null) // Only the records of the barcode windows were read, the others are counted from the index
+			{
+				stats.nbReads = indexCounts[0];
+				stats.unmapped = (int)indexCounts[1];
+				decode.add(0, 0, 0, 0, indexCounts[2]);
+			}
+			else decode.add(0, 0, 0, 0, inputBAMFile.length());
+		}
+		catch(IOException ioe)
+		{
+			throw new CounterException(ioe.getMessage(), ioe);
+		}
+		catch(SAMFormatException sfe)
+		{
+			throw new CounterException(sfe.getMessage(), sfe);
+		}
+		catch(ExecutionException ee)
+		{
+			throw new CounterException(ee.getCause().getMessage(), ee.getCause());
+		}
+		catch(InterruptedException ie)
+		{
+			throw new CounterException(ie.getMessage(), ie);
+		}
+		config.out.println(stats.nbReads + " reads were processed from BAM file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+	}
+	
+	private static SamReader openSamReader(CounterConfig config)
+	{
+		SamReaderFactory samReaderFactory = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT);
+		if(config.referenceFasta != null) samReaderFactory = samReaderFactory.referenceSequence(config.referenceFasta); // CRAM
+		return samReaderFactory.open(config.inputBAMFileR2);
+	}
+	
+	/**
+	 * Queries the records overlapping the barcode windows, through the index of a coordinate-sorted BAM/CRAM file.
+	 * The same positions are queried on every reference sequence, since the windows are extracted whatever the reference of the alignment (as when the whole file is read).
+	 * @param counts receives the number of records and of unmapped records of the whole file (from the metadata of the index, 0 if it has none), and the compressed bytes of the query
+	 */
+	private static CloseableIterator<SAMRecord> queryBarcodes(SamReader samReader, CounterConfig config, long[] counts)
+	{
+		if(!samReader.hasIndex()) throw new CounterException("The '--region' option needs a coordinate-sorted BAM/CRAM file with its index (.bai, .csi or .crai): no index was found for " + config.inputBAMFileR2.getAbsolutePath());
+		BAMIndex index = samReader.indexing().getIndex();
+		SAMSequenceDictionary dictionary = samReader.getFileHeader().getSequenceDictionary();
+		int start = Math.min(config.startBC1, config.startBC2);
+		int end = Math.max(config.endBC1, config.endBC2);
+		QueryInterval[] intervals = new QueryInterval[dictionary.size()];
+		for(int ref = 0; ref < dictionary.size(); ref++)
+		{
+			BAMIndexMetaData metaData = index.getMetaData(ref);
+			if(metaData != null)
+			{
+				counts[0] += metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+				counts[1] += metaData.getUnalignedRecordCount(); // Unmapped mates placed at the position of their mate
+			}
+			BAMFileSpan span = index.getSpanOverlapping(ref, start, end);
+			if(span != null) for(Chunk c:span.getChunks()) counts[2] += (c.getChunkEnd() >>> 16) - (c.getChunkStart() >>> 16);
+			intervals[ref] = new QueryInterval(ref, start, end);
+		}
+		if(index instanceof AbstractBAMFileIndex)
+		{
+			Long noCoordinate = ((AbstractBAMFileIndex)index).getNoCoordinateCount(); // Unmapped reads, at the end of the file
+			if(noCoordinate != null)
+			{
+				counts[0] += noCoordinate;
+				counts[1] += noCoordinate;
+			}
+		}
+		return samReader.query(intervals, false);
+	}
+	
+	/**
+	 * Batch of consecutive BAM records, filtered and classified by one worker
+	 * The records are either SAMRecords, or the raw bytes of the records (one after the other in one array), decoded by RawBAMRecord only as far as the filters need
+	 */
+	private static class RecordBatch extends BatchPipeline.Batch
+	{
+		SAMRecord[] records = null;
+		byte[] data = null; // Raw records
+		int[] offsets = null;
+		int dataSize = 0;
+		String[] cellBarcodes = new String[BATCH_SIZE]; // Tag mode only
+		String[] umis = new String[BATCH_SIZE];
+		
+		RecordBatch(CounterEngine engine, boolean raw)
+		{
+			super(engine);
+			if(raw)
+			{
+				data = new byte[BATCH_SIZE * 256];
+				offsets = new int[BATCH_SIZE + 1];
+			}
+			else records = new SAMRecord[BATCH_SIZE];
+		}
+		
+		/**
+		 * @return false at the end of the file
+		 */
+		boolean add(CloseableIterator<SAMRecord> it)
+		{
+			if(!it.hasNext()) return false;
+			records[size++] = it.next();
+			return true;
+		}
+		
+		/**
+		 * @return false at the end of the file
+		 */
+		boolean add(BAMStreamReader reader) throws IOException
+		{
+			int length = reader.nextRecordLength();
+			if(length == -1) return false;
+			if(dataSize + length > data.length) data = Arrays.copyOf(data, (int)Math.min(Integer.MAX_VALUE - 8, Math.max((long)dataSize + length, 2L * data.length)));
+			reader.readRecord(data, dataSize, length);
+			offsets[size++] = dataSize;
+			dataSize += length;
+			offsets[size] = dataSize;
+			return true;
+		}
+		
+		@Override
+		void process()
+		{
+			String cellTag = engine.config.cellTag;
+			Metrics.Timer timer = Metrics.start();
+			long[] walls = new long[3]; // Filter, extraction, matching
+			long[] counts = new long[3];
+			long t = System.nanoTime();
+			boolean windowQuality = engine.config.barcodeQuality;
+			WindowExtractor extractor = engine.extractors.get();
+			RawBAMRecord raw = data != null ? engine.rawRecords.get() : null;
+			for(int i = 0; i < size; i++)
+			{
+				SAMRecord samRecord = null;
+				int flag, mapq;
+				if(raw != null)
+				{
+					raw.wrap(data, offsets[i], offsets[i + 1] - offsets[i]);
+					flag = raw.getFlag();
+					mapq = raw.getMappingQuality();
+				}
+				else
+				{
+					samRecord = records[i];
+					records[i] = null;
+					flag = samRecord.getFlags();
+					mapq = samRecord.getMappingQuality();
+				}
+				boolean passed = false;
+				if((flag & RawBAMRecord.SUPPLEMENTARY) != 0 || (cellTag != null && (flag & RawBAMRecord.SECONDARY) != 0)) stats.notUnique++; // Secondary alignments are not joined by read name in tag mode
+				else if((flag & RawBAMRecord.UNMAPPED) != 0) stats.unmapped++;
+				else if(mapq < 10) stats.tooLowAQUAL++;
+				else
+				{
+					// Qualities are only read now, and only over the barcode windows with '--barcodeQuality' (NaN, i.e. missing qualities, passes)
+					setCigar(samRecord, raw, extractor);
+					if(sequencingQuality(samRecord, raw, extractor, windowQuality) < 10) stats.tooLowSQUAL++;
+					else passed = true;
+				}
+				long now = System.nanoTime();
+				walls[0] += now - t;
+				t = now;
+				if(!passed) continue;
+				readNames[i] = raw != null ? raw.getReadName() : samRecord.getReadName();
+				
+				// Search for consistently overlapping barcode
+				extractWindows(samRecord, raw, extractor);
+				now = System.nanoTime();
+				walls[1] += now - t;
+				t = now;
+				barcodes[i] = classify(extractor, engine.barcodes, engine.cache, stats, engine.log);
+				if(cellTag != null && barcodes[i] != null)
+				{
+					cellBarcodes[i] = raw != null ? getTag(raw.getTag(cellTag)) : getTag(samRecord, cellTag);
+					umis[i] = raw != null ? getTag(raw.getTag(engine.config.umiTag)) : getTag(samRecord, engine.config.umiTag);
+				}
+				now = System.nanoTime();
+				walls[2] += now - t;
+				t = now;
+				counts[1]++;
+			}
+			data = null;
+			counts[0] = size;
+			counts[2] = counts[1];
+			Metrics metrics = engine.metrics;
+			metrics.split(timer, new Metrics.Stage[] {metrics.get(Metrics.FILTER), metrics.get(Metrics.EXTRACTION), metrics.get(Metrics.MATCHING)}, walls, counts);
+		}
+	}
+	
+	/**
+	 * @return the value of this tag, or null if it is missing or '-' (no value, as written by STARsolo)
+	 */
+	private static String getTag(SAMRecord samRecord, String tag)
+	{
+		Object value = samRecord.getAttribute(tag);
+		return getTag(value == null ? null : value.toString());
+	}
+	
+	private static String getTag(String value)
+	{
+		if(value == null || value.isEmpty() || value.equals("-")) return null;
+		return value;
+	}
+	
+	/**
+	 * Sets the CIGAR of the record (SAMRecord, or raw record if samRecord is null) in the extractor
+	 */
+	private static void setCigar(SAMRecord samRecord, RawBAMRecord raw, WindowExtractor extractor)
+	{
+		if(samRecord == null)
+		{
+			raw.decodeCigar(extractor);
+			return;
+		}
+		extractor.resetCigar();
+		for(CigarElement cigar:samRecord.getCigar().getCigarElements()) extractor.addCigarElement(CigarOperator.enumToBinary(cigar.getOperator()), cigar.getLength());
+	}
+	
+	/**
+	 * Mean phred quality of the whole read, or of the read bases placed in the barcode windows (for the CIGAR set in the extractor)
+	 * @return NaN if the qualities are missing, or if no base is placed in the windows
+	 */
+	private static float sequencingQuality(SAMRecord samRecord, RawBAMRecord raw, WindowExtractor extractor, boolean windowQuality)
+	{
+		if(samRecord == null)
+		{
+			if(!windowQuality) return raw.meanQuality();
+			if(!raw.hasQualities()) return Float.NaN;
+			return extractor.windowQuality(raw.getAlignmentStart(), raw.getData(), raw.getQualityOffset(), raw.getReadLength());
+		}
+		byte[] qualities = samRecord.getBaseQualities();
+		if(windowQuality) return qualities.length == 0 ? Float.NaN : extractor.windowQuality(samRecord.getAlignmentStart(), qualities, 0, qualities.length);
+		float sequencing_phred = 0;
+		for(byte b:qualities) sequencing_phred += (int)b;
+		return sequencing_phred / qualities.length;
+	}
+	
+	/**
+	 * Extracts the two barcode windows of an aligned record (SAMRecord, or raw record if samRecord is null), for the CIGAR set in the extractor
+	 */
+	private static void extractWindows(SAMRecord samRecord, RawBAMRecord raw, WindowExtractor extractor)
+	{
+		byte[] bases = samRecord != null ? samRecord.getReadBases() : raw.decodeBases();
+		int length = samRecord != null ? bases.length : raw.getReadLength();
+		if(!extractor.extract(samRecord != null ? samRecord.getAlignmentStart() : raw.getAlignmentStart(), bases, length))
+		{
+			throw new CounterException("CIGAR = " + (samRecord != null ? samRecord.getCigarString() : "unsupported operator (H, P, =, X) in read " + raw.getReadName()));
+		}
+	}
+	
+	/**
+	 * Matches the two barcode windows of a read against the TF barcodes (whether the windows were found by alignment or by their flanking sequences)
+	 * The outcome is taken from the cache if these windows were already seen
+	 * @param cache null for no cache
+	 * @return the TF barcode, or null if not consistently mapping to a TF
+	 */
+	public static Barcode classify(BarcodeWindows windows, TFBarcodes barcodes, ClassificationCache cache, ReadStatistics stats, Logger log)
+	{
+		ClassificationCache.Entry outcome = null;
+		long window1 = 0, window2 = 0;
+		boolean cacheable = cache != null && barcodes.matcherBC1.isIndexed() && barcodes.matcherBC2.isIndexed(); // Else the outcome depends on more than the packed windows
+		if(cacheable)
+		{
+			window1 = ClassificationCache.pack(windows, 0);
+			window2 = ClassificationCache.pack(windows, 1);
+			cacheable = window1 != -1 && window2 != -1;
+		}
+		if(cacheable) outcome = cache.get(window1, window2);
+		if(outcome != null) stats.cacheHits++;
+		else
+		{
+			outcome = match(windows, barcodes, window1, window2, log.isEnabled());
+			if(cacheable)
+			{
+				cache.put(outcome);
+				stats.cacheMisses++;
+			}
+		}
+		
+		switch(outcome.category)
+		{
+			case ClassificationCache.BC1: stats.overlapBC1++; break;
+			case ClassificationCache.BC2: stats.overlapBC2++; break;
+			case ClassificationCache.BOTH: stats.overlapBoth++; break;
+		}
+		if(outcome.log != null) log.record(outcome.log);
+		return outcome.barcode;
+	}
+	
+	/**
+	 * @param withLog false if the line of the detailed log is not needed (not built)
+	 */
+	private static ClassificationCache.Entry match(BarcodeWindows windows, TFBarcodes barcodes, long window1, long window2, boolean withLog)
+	{
+		// Get best matching barcodes
+		ArrayList<Barcode> matchingBC1 = getBestMatchingBarcodes(windows, 0, barcodes.matcherBC1); // position of barcode 1
+		ArrayList<Barcode> matchingBC2 = getBestMatchingBarcodes(windows, 1, barcodes.matcherBC2); // position of barcode 2
+		
+		// Count them or not
+		// No overlap
+		if(matchingBC1.isEmpty() && matchingBC2.isEmpty()) return new ClassificationCache.Entry(window1, window2, null, ClassificationCache.NONE, null);
+		
+		// Overlap both
+		if(!matchingBC1.isEmpty() && !matchingBC2.isEmpty()) 
+		{
+			Barcode bestMatch = null;
+			byte category = ClassificationCache.NONE;
+			String line = null;
+			
+			// Intersection
+			String bc1 = withLog ? Barcode.toString(matchingBC1) : null;
+			matchingBC1.retainAll(matchingBC2); // Retaining barcodes (comparing object refs)
+			
+			// Only one in common
+			if(matchingBC1.size() == 1)
+			{
+				bestMatch = matchingBC1.get(0);
+				if(withLog) line = "[COUNTED] Best match: BC1&BC2[" + bestMatch + "]\n";
+				category = ClassificationCache.BOTH;
+			}
+			else if(matchingBC1.size() > 1)// Multiple in common
+			{
+				if(withLog) line = "[NOT COUNTED] Multiple barcodes in common: BC1" + bc1 + " - BC2" + Barcode.toString(matchingBC2) + "\n";
+			}
+			else // No one in common
+			{
+				if(withLog) line = "[NOT COUNTED] None of the found barcodes are in common: " + bc1 + " - BC2" + Barcode.toString(matchingBC2) + "\n";
+			}
+			return new ClassificationCache.Entry(window1, window2, bestMatch, category, line);
+		}
+		
+		// Overlap BC1 only
+		if(!matchingBC1.isEmpty() && matchingBC2.isEmpty()) 
+		{
+			Barcode bestMatch = null;
+			byte category = ClassificationCache.NONE;
+			String line = null;
+			
+			// Only one
+			if(matchingBC1.size() == 1)
+			{
+				bestMatch = matchingBC1.get(0);
+				if(withLog) line = "[COUNTED] Best match: BC1[" + bestMatch + "] & BC2[Empty]\n";
+				category = ClassificationCache.BC1;
+			}
+			else if(matchingBC1.size() > 1)// Multiple
+			{
+				if(withLog) line = "[NOT COUNTED] Multiple barcodes found: BC1" + Barcode.toString(matchingBC1) + " & BC2[Empty]\n";
+			}
+			else
+			{
+				// This should not happen
+				throw new CounterException("This should not happen [AnalyzeAlignedBAM, l.173]");
+			}
+			return new ClassificationCache.Entry(window1, window2, bestMatch, category, line);
+		}
+		
+		// Overlap BC2 only
+		if(matchingBC1.isEmpty() && !matchingBC2.isEmpty()) 
+		{
+			Barcode bestMatch = null;
+			byte category = ClassificationCache.NONE;
+			String line = null;
+			
+			// Only one
+			if(matchingBC2.size() == 1)
+			{
+				bestMatch = matchingBC2.get(0);
+				if(withLog) line = "[COUNTED] Best match: BC1[Empty] & BC2[" + bestMatch + "]\n";
+				category = ClassificationCache.BC2;
+			}
+			else if(matchingBC2.size() > 1)// Multiple
+			{
+				if(withLog) line = "[NOT COUNTED] Multiple barcodes found: BC1[Empty] & BC2" + Barcode.toString(matchingBC1) + "\n";
+			}
+			else
+			{
+				// This should not happen
+				throw new CounterException("This should not happen [AnalyzeAlignedBAM, l.199]");
+			}
+			return new ClassificationCache.Entry(window1, window2, bestMatch, category, line);
+		}
+		return new ClassificationCache.Entry(window1, window2, null, ClassificationCache.NONE, null);
+	}
+	
+	private static ArrayList<Barcode> getBestMatchingBarcodes(BarcodeWindows windows, int w, BarcodeMatcher matcher)
+	{
+		if(windows.getLength(w) == -1) return new ArrayList<Barcode>(); // Not overlapping
+		if(windows.isOnly(w, (byte)'-') || windows.isOnly(w, (byte)'N')) return new ArrayList<Barcode>(); // Only deletions or unknown bases
+		return matcher.getBestMatchingBarcodes(windows.getWindow(w), windows.getOffset(w), windows.getLength(w));
+	}
+}
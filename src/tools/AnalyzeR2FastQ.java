@@ -0,0 +1,159 @@
+package tools;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+import model.Barcode;
+import model.CounterConfig;
+import model.CounterException;
+import model.ReadStatistics;
+
+/**
+ * Aligner-free alternative to AnalyzeAlignedBAM: the TF barcodes are searched for directly in the raw R2 FastQ file, around the constant sequences of the vector (see FlankLocator)
+ * The extracted windows are matched exactly as the aligned ones (AnalyzeAlignedBAM.classify)
+ */
+public class AnalyzeR2FastQ
+{
+	/**
+	 * @return the TF barcode of each read consistently mapping to a TF
+	 */
+	public static ReadNameTable readR2FastQ(CounterEngine engine)
+	{
+		ReadNameTable result = new ReadNameTable();
+		readR2FastQ(engine, (readName, bc) ->
+		{
+			// Check duplicated read names
+			if(result.containsKey(readName)) throw new CounterException("Duplicated read names: " + readName);
+
+			// Add to result if found
+			if(bc != null) result.put(readName, bc.index);
+		});
+		return result;
+	}
+
+	/**
+	 * Same batches as for the BAM file (see BatchPipeline): the records are parsed by the calling thread and classified in a pool of workers, and merged back in the order of the file.
+	 * @param handler receives, in the order of the FastQ file, the name of every read passing the filters, with its TF barcode (null if not consistently mapping to a TF)
+	 */
+	public static void readR2FastQ(CounterEngine engine, BiConsumer<String, Barcode> handler)
+	{
+		CounterConfig config = engine.config;
+		ReadStatistics stats = engine.result.stats;
+		Long start = System.currentTimeMillis();
+		engine.log.write("\nReading the reads from the R2 FastQ file...\n");
+		FastqParser parser = Utils.parseFastq(config.inputBAMFileR2, "R2 fastq file", config.nbInflateThreads);
+		try
+		{
+			BatchPipeline.run(engine, "R2 fastq file", start, () -> new ReadBatch(engine), batch -> batch.add(parser), batch -> 
+			{
+				for(int i = 0; i < batch.size; i++) if(batch.readNames[i] != null) handler.accept(batch.readNames[i], batch.barcodes[i]); // Passed the filters
+			});
+			engine.metrics.get(Metrics.DECODE).add(0, 0, 0, 0, config.inputBAMFileR2.length());
+		}
+		catch(IOException ioe)
+		{
+			throw new CounterException(ioe.getMessage(), ioe);
+		}
+		catch(ExecutionException ee)
+		{
+			throw new CounterException(ee.getCause().getMessage(), ee.getCause());
+		}
+		catch(InterruptedException ie)
+		{
+			throw new CounterException(ie.getMessage(), ie);
+		}
+		finally
+		{
+			Utils.close(parser);
+		}
+		config.out.println(stats.nbReads + " reads were processed from R2 fastq file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+	}
+
+	/**
+	 * Batch of consecutive FastQ records (copied out of the parser buffer), filtered and classified by one worker
+	 */
+	private static class ReadBatch extends BatchPipeline.Batch
+	{
+		byte[] data = new byte[BATCH_SIZE * 256]; // Sequences and qualities
+		int[] sequenceOffsets = new int[BATCH_SIZE];
+		int[] qualityOffsets = new int[BATCH_SIZE];
+		int[] sequenceLengths = new int[BATCH_SIZE];
+		int[] qualityLengths = new int[BATCH_SIZE];
+		int dataSize = 0;
+
+		ReadBatch(CounterEngine engine)
+		{
+			super(engine);
+		}
+
+		/**
+		 * @return false at the end of the file
+		 */
+		boolean add(FastqParser parser)
+		{
+			if(!parser.next()) return false;
+			readNames[size] = parser.getName();
+			sequenceOffsets[size] = copy(parser.getBuffer(), parser.getSequenceOffset(), parser.getSequenceLength());
+			sequenceLengths[size] = parser.getSequenceLength();
+			qualityOffsets[size] = copy(parser.getBuffer(), parser.getQualityOffset(), parser.getQualityLength());
+			qualityLengths[size] = parser.getQualityLength();
+			size++;
+			return true;
+		}
+
+		private int copy(byte[] buffer, int offset, int length)
+		{
+			if(dataSize + length > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + length));
+			System.arraycopy(buffer, offset, data, dataSize, length);
+			dataSize += length;
+			return dataSize - length;
+		}
+
+		@Override
+		void process()
+		{
+			FlankLocator locator = engine.locators.get();
+			Metrics.Timer timer = Metrics.start();
+			long[] walls = new long[3]; // Filter, extraction, matching
+			long[] counts = new long[3];
+			long t = System.nanoTime();
+			for(int i = 0; i < size; i++)
+			{
+				float sequencing_phred = 0;
+				for(int q = 0; q < qualityLengths[i]; q++) sequencing_phred += data[qualityOffsets[i] + q] - 33;
+				sequencing_phred /= qualityLengths[i];
+				long now = System.nanoTime();
+				walls[0] += now - t;
+				t = now;
+				boolean located = locator.locate(data, sequenceOffsets[i], sequenceLengths[i]);
+				now = System.nanoTime();
+				walls[1] += now - t;
+				t = now;
+				if(!located) // No constant sequence of the vector
+				{
+					stats.unmapped++;
+					readNames[i] = null;
+				}
+				else if(qualityLengths[i] == 0 || sequencing_phred < 10) // No quality line: rejected (0/0 would be NaN, and pass)
+				{
+					stats.tooLowSQUAL++;
+					readNames[i] = null;
+				}
+				else
+				{
+					barcodes[i] = AnalyzeAlignedBAM.classify(locator, engine.barcodes, engine.cache, stats, engine.log); // Search for consistently overlapping barcode
+					counts[2]++;
+				}
+				now = System.nanoTime();
+				walls[2] += now - t;
+				t = now;
+			}
+			counts[0] = size;
+			counts[1] = size;
+			Metrics metrics = engine.metrics;
+			metrics.split(timer, new Metrics.Stage[] {metrics.get(Metrics.FILTER), metrics.get(Metrics.EXTRACTION), metrics.get(Metrics.MATCHING)}, walls, counts);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package tools;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BufferedLineReader;
+
+/**
+ * Sequential BAM reader: the records are not decoded, their bytes are copied as they are, for RawBAMRecord.
+ * The BGZF blocks are inflated on a pool of threads (ParallelBGZFInputStream), or by htsjdk on the calling thread if there is no inflating thread.
+ */
+public class BAMStreamReader implements Closeable
+{
+	private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+
+	private final InputStream in;
+	private final SAMFileHeader header;
+	private final byte[] blockSize = new byte[4];
+
+	/**
+	 * @param nbThreads threads inflating the BGZF blocks, 0 for inflating them on the calling thread
+	 */
+	public BAMStreamReader(File bamFile, int nbThreads) throws IOException
+	{
+		BufferedInputStream input = new BufferedInputStream(new FileInputStream(bamFile), 1 << 20);
+		input.mark(18);
+		byte[] start = new byte[18];
+		int n = input.read(start);
+		input.reset();
+		if(!ParallelBGZFInputStream.isBGZF(start, n))
+		{
+			input.close();
+			throw new SAMFormatException(bamFile.getAbsolutePath() + " is not a BAM file (not BGZF-compressed)");
+		}
+		this.in = nbThreads > 0 ? new ParallelBGZFInputStream(input, nbThreads) : new BlockCompressedInputStream(input);
+		this.header = readHeader(new BinaryCodec(in), bamFile.getAbsolutePath());
+	}
+
+	/**
+	 * @return true if the file starts with a BGZF block (i.e. can be a BAM file, not a SAM or CRAM file)
+	 */
+	public static boolean isBGZF(File file) throws IOException
+	{
+		try(FileInputStream input = new FileInputStream(file))
+		{
+			byte[] start = new byte[18];
+			int n = 0;
+			while(n < start.length)
+			{
+				int r = input.read(start, n, start.length - n);
+				if(r == -1) break;
+				n += r;
+			}
+			return ParallelBGZFInputStream.isBGZF(start, n);
+		}
+	}
+
+	/**
+	 * Reads the block_size of the next record
+	 * @return the length of the record, or -1 at the end of the file
+	 */
+	public int nextRecordLength() throws IOException
+	{
+		int n = 0;
+		while(n < 4)
+		{
+			int r = in.read(blockSize, n, 4 - n);
+			if(r == -1)
+			{
+				if(n == 0) return -1;
+				throw new SAMFormatException("Truncated BAM record");
+			}
+			n += r;
+		}
+		return (blockSize[0] & 0xFF) | (blockSize[1] & 0xFF) << 8 | (blockSize[2] & 0xFF) << 16 | (blockSize[3] & 0xFF) << 24;
+	}
+
+	/**
+	 * Copies the next record (of the length given by nextRecordLength)
+	 */
+	public void readRecord(byte[] b, int offset, int length) throws IOException
+	{
+		while(length > 0)
+		{
+			int r = in.read(b, offset, length);
+			if(r == -1) throw new SAMFormatException("Truncated BAM record");
+			offset += r;
+			length -= r;
+		}
+	}
+
+	private static SAMFileHeader readHeader(BinaryCodec binary, String source)
+	{
+		byte[] magic = new byte[4];
+		binary.readBytes(magic);
+		for(int i = 0; i < 4; i++) if(magic[i] != BAM_MAGIC[i]) throw new SAMFormatException("Invalid BAM file header (wrong magic number): " + source);
+
+		// Text header
+		String text = binary.readString(binary.readInt());
+		SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
+		headerCodec.setValidationStringency(ValidationStringency.SILENT);
+		SAMFileHeader header = headerCodec.decode(BufferedLineReader.fromString(text), source);
+
+		// Binary sequence dictionary (used if missing from the text header)
+		int nbReferences = binary.readInt();
+		ArrayList<SAMSequenceRecord> references = new ArrayList<SAMSequenceRecord>();
+		for(int i = 0; i < nbReferences; i++)
+		{
+			int l = binary.readInt();
+			String name = binary.readString(l - 1);
+			binary.readByte(); // NUL
+			references.add(new SAMSequenceRecord(name, binary.readInt()));
+		}
+		if(header.getSequenceDictionary().isEmpty() && !references.isEmpty()) header.setSequenceDictionary(new SAMSequenceDictionary(references));
+		return header;
+	}
+
+	public SAMFileHeader getFileHeader()
+	{
+		return header;
+	}
+
+	@Override
+	public void close()
+	{
+		try
+		{
+			in.close();
+		}
+		catch(IOException ioe)
+		{
+			throw new SAMFormatException(ioe.getMessage());
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import model.Barcode;
+
+/**
+ * Precomputed lookup of the best matching TF barcodes for one barcode position (BC1 or BC2).
+ * Every barcode and its whole error-neighborhood (all strings within the largest edit distance that can still pass the similarity threshold) are hashed once to their best-match set, so a lookup is a single probe.
+ * Since barcodes are made of A/C/G/T only, any other character of the read ('N', '-' padding of deletions, ...) can never match, and all of them share the same code in the index.
+ * If the barcodes cannot be indexed (non-ACGT letters, too long, or a neighborhood larger than 1 edit), it falls back to comparing against every barcode.
+ */
+public class BarcodeMatcher
+{
+	public static final double MIN_SIMILARITY = 0.9; // 0.909... for 1 mismatch 11 bp. The only accepted mismatch rate
+	private static final int MAX_PACKED_LENGTH = 21; // 3 bits per base + 1 sentinel bit in a long
+	private static final char[] ALPHABET = {'A', 'C', 'G', 'T', 'N'}; // 'N' stands for any non-ACGT character
+
+	private final List<Barcode> barcodes;
+	private final boolean isFirst;
+	private final Levenshtein metric;
+	private final boolean indexed;
+
+	// Open addressing table: packed query -> index of its best-match set
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size = 0;
+	private final ArrayList<Barcode[]> sets = new ArrayList<Barcode[]>();
+
+	public BarcodeMatcher(List<Barcode> barcodes, boolean isFirst, Levenshtein metric)
+	{
+		this.barcodes = barcodes;
+		this.isFirst = isFirst;
+		this.metric = metric;
+		this.indexed = isIndexable();
+		if(indexed) buildIndex();
+	}
+
+	public boolean isIndexed()
+	{
+		return indexed;
+	}
+
+	/**
+	 * Same result as comparing the barcode against all known barcodes (same content, same order). The returned list can be modified by the caller.
+	 */
+	public ArrayList<Barcode> getBestMatchingBarcodes(String barcode)
+	{
+		if(barcode == null) return new ArrayList<Barcode>();
+		if(!indexed) return scan(barcode);
+		if(barcode.length() > MAX_PACKED_LENGTH) return new ArrayList<Barcode>();
+		long key = 1;
+		for(int i = 0; i < barcode.length(); i++) key = (key << 3) | code(barcode.charAt(i));
+		return lookup(key);
+	}
+	
+	/**
+	 * Same as getBestMatchingBarcodes(String), for a barcode stored in a byte buffer
+	 */
+	public ArrayList<Barcode> getBestMatchingBarcodes(byte[] barcode, int offset, int length)
+	{
+		if(!indexed) return scan(new String(barcode, offset, length));
+		if(length > MAX_PACKED_LENGTH) return new ArrayList<Barcode>();
+		long key = 1;
+		for(int i = offset; i < offset + length; i++) key = (key << 3) | code((char)barcode[i]);
+		return lookup(key);
+	}
+	
+	private ArrayList<Barcode> lookup(long key)
+	{
+		ArrayList<Barcode> bestMatching = new ArrayList<Barcode>();
+		int index = get(key);
+		if(index != -1) bestMatching.addAll(Arrays.asList(sets.get(index)));
+		return bestMatching;
+	}
+
+	/**
+	 * Full scan: comparison against every barcode of the list
+	 */
+	public ArrayList<Barcode> scan(String barcode)
+	{
+		ArrayList<Barcode> bestMatching = new ArrayList<Barcode>();
+		if(barcode == null) return bestMatching;
+		float max = 0;
+		for(Barcode b:barcodes)
+		{
+			String comparedTo = b.second;
+			if(isFirst) comparedTo = b.first;
+			float result = metric.compare(barcode, comparedTo, MIN_SIMILARITY);
+			if(result > MIN_SIMILARITY)
+			{
+				if(result > max)
+				{
+					bestMatching.clear();
+					bestMatching.add(b);
+					max = result;
+				}
+				else if(result == max)
+				{
+					bestMatching.add(b);
+				}
+			}
+		}
+		return bestMatching;
+	}
+
+	private String getBarcode(Barcode b)
+	{
+		return isFirst?b.first:b.second;
+	}
+
+	private boolean isIndexable()
+	{
+		if(barcodes.isEmpty()) return false;
+		int l = getBarcode(barcodes.get(0)).length();
+		for(Barcode b:barcodes)
+		{
+			String seq = getBarcode(b);
+			if(seq.length() != l) return false;
+			for(int i = 0; i < seq.length(); i++) if(code(seq.charAt(i)) > 4) return false;
+		}
+		int radius = maxDistance(l);
+		return radius <= 1 && l + radius <= MAX_PACKED_LENGTH;
+	}
+
+	/**
+	 * Largest edit distance between a barcode of length l and a query (of any length) that still passes the similarity threshold
+	 */
+	private static int maxDistance(int l)
+	{
+		int radius = 0;
+		for(int q = 1; q <= 2 * l + 2; q++)
+		{
+			int max = Math.max(q, l);
+			for(int d = Math.abs(q - l); d <= max; d++) if(1.0f - (d / (float)max) > MIN_SIMILARITY) radius = Math.max(radius, d);
+		}
+		return radius;
+	}
+
+	private void buildIndex()
+	{
+		ArrayList<String> neighborhood = new ArrayList<String>();
+		for(Barcode b:barcodes)
+		{
+			String seq = getBarcode(b);
+			neighborhood.add(seq);
+			if(maxDistance(seq.length()) == 0) continue;
+			for(int i = 0; i <= seq.length(); i++)
+			{
+				String prefix = seq.substring(0, i);
+				for(char c:ALPHABET) neighborhood.add(prefix + c + seq.substring(i)); // Insertions
+				if(i == seq.length()) break;
+				String suffix = seq.substring(i + 1);
+				neighborhood.add(prefix + suffix); // Deletion
+				for(char c:ALPHABET) if(c != seq.charAt(i)) neighborhood.add(prefix + c + suffix); // Substitutions
+			}
+		}
+
+		HashMap<ArrayList<Barcode>, Integer> uniqueSets = new HashMap<ArrayList<Barcode>, Integer>(); // Barcode lists are compared by object refs
+		allocate(neighborhood.size());
+		for(String query:neighborhood)
+		{
+			long key = 1;
+			for(int i = 0; i < query.length(); i++) key = (key << 3) | code(query.charAt(i));
+			if(get(key) != -1) continue;
+			ArrayList<Barcode> bestMatching = scan(query);
+			if(bestMatching.isEmpty()) continue;
+			Integer index = uniqueSets.get(bestMatching);
+			if(index == null)
+			{
+				index = sets.size();
+				sets.add(bestMatching.toArray(new Barcode[bestMatching.size()]));
+				uniqueSets.put(bestMatching, index);
+			}
+			put(key, index);
+		}
+	}
+
+	private static int code(char c)
+	{
+		switch(c)
+		{
+			case 'A': return 1;
+			case 'C': return 2;
+			case 'G': return 3;
+			case 'T': return 4;
+			default: return 5;
+		}
+	}
+
+	private void allocate(int expected)
+	{
+		int capacity = 16;
+		while(capacity < expected * 2) capacity <<= 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(long key)
+	{
+		key *= 0x9E3779B97F4A7C15L;
+		return (int)(key ^ (key >>> 32));
+	}
+
+	private int get(long key)
+	{
+		int i = hash(key) & mask;
+		while(keys[i] != 0)
+		{
+			if(keys[i] == key) return values[i];
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void put(long key, int value)
+	{
+		int i = hash(key) & mask;
+		while(keys[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+		if(keys[i] == 0) size++;
+		keys[i] = key;
+		values[i] = value;
+	}
+
+	@Override
+	public String toString()
+	{
+		if(!indexed) return "BarcodeMatcher [BC" + (isFirst?1:2) + ", not indexed]";
+		return "BarcodeMatcher [BC" + (isFirst?1:2) + ", " + size + " indexed sequences]";
+	}
+}
@@ -0,0 +1,24 @@
+package tools;
+
+/**
+ * Bases of a read at the two barcode windows, however they were located (alignment, or flanking sequences)
+ */
+public interface BarcodeWindows
+{
+	/**
+	 * @param w 0 for barcode 1, 1 for barcode 2
+	 */
+	public byte[] getWindow(int w);
+
+	public int getOffset(int w);
+
+	/**
+	 * @return -1 if the read does not overlap the window
+	 */
+	public int getLength(int w);
+
+	/**
+	 * True if the window has its full length and is only made of this character (e.g. only '-' or only 'N')
+	 */
+	public boolean isOnly(int w, byte b);
+}
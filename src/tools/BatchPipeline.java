@@ -0,0 +1,123 @@
+package tools;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import model.Barcode;
+import model.CounterConfig;
+import model.ReadStatistics;
+
+/**
+ * R2 pass by batches (aligned BAM file, or raw FastQ file): the records are read by the calling thread, filtered and classified by batches in a pool of workers (the shared pool of the run, if any),
+ * and handed back in the order of the file (so that duplicated read names are detected exactly as in a sequential run).
+ */
+public class BatchPipeline
+{
+	/**
+	 * Batch of consecutive records, filtered and classified by one worker
+	 */
+	static abstract class Batch
+	{
+		static final int BATCH_SIZE = 10000;
+
+		final CounterEngine engine;
+		String[] readNames = new String[BATCH_SIZE]; // null if the record did not pass the filters
+		Barcode[] barcodes = new Barcode[BATCH_SIZE];
+		ReadStatistics stats = new ReadStatistics(); // Filled by process(), except nbReads
+		int size = 0;
+
+		Batch(CounterEngine engine)
+		{
+			this.engine = engine;
+		}
+
+		/**
+		 * Filters and classifies the records of the batch (on a worker)
+		 */
+		abstract void process();
+	}
+
+	/**
+	 * Reads the file, on the calling thread
+	 */
+	interface Reader<B extends Batch>
+	{
+		/**
+		 * Adds the next record of the file to the batch
+		 * @return false at the end of the file
+		 */
+		boolean next(B batch) throws IOException;
+	}
+
+	/**
+	 * @param fileName name of the file in the progress lines
+	 * @param start time of the start of the pass (ms), for the progress lines
+	 * @param handler receives the classified batches, in the order of the file
+	 */
+	static <B extends Batch> void run(CounterEngine engine, String fileName, long start, Supplier<B> newBatch, Reader<B> reader, Consumer<B> handler) throws IOException, ExecutionException, InterruptedException
+	{
+		CounterConfig config = engine.config;
+		ExecutorService pool = config.pool;
+		if(pool == null && config.nbThreads > 1) pool = Executors.newFixedThreadPool(config.nbThreads);
+		try
+		{
+			ArrayDeque<Future<B>> pending = new ArrayDeque<Future<B>>();
+			Metrics.Stage decode = engine.metrics.get(Metrics.DECODE);
+			Metrics.Timer timer = Metrics.start();
+			B batch = newBatch.get();
+			boolean hasNext = true;
+			while(hasNext)
+			{
+				hasNext = reader.next(batch);
+				if(batch.size == Batch.BATCH_SIZE || (!hasNext && batch.size > 0))
+				{
+					decode.stop(timer, batch.size, 0); // Bytes: the file, added by the caller
+					if(pool == null)
+					{
+						batch.process();
+						merge(batch, handler, engine, fileName, start);
+					}
+					else
+					{
+						B submitted = batch;
+						pending.add(pool.submit(() ->
+						{
+							submitted.process();
+							return submitted;
+						}));
+						if(pending.size() >= 2 * config.nbThreads) merge(pending.poll().get(), handler, engine, fileName, start);
+					}
+					batch = newBatch.get();
+					timer = Metrics.start();
+				}
+			}
+			while(!pending.isEmpty()) merge(pending.poll().get(), handler, engine, fileName, start);
+		}
+		finally
+		{
+			if(pool != null && pool != config.pool) pool.shutdown();
+		}
+	}
+
+	/**
+	 * Hands a classified batch to the handler, and adds its statistics to the ones of the run
+	 */
+	private static <B extends Batch> void merge(B batch, Consumer<B> handler, CounterEngine engine, String fileName, long start)
+	{
+		ReadStatistics stats = engine.result.stats;
+		CounterConfig config = engine.config;
+		Metrics.Timer timer = Metrics.start();
+		handler.accept(batch);
+		long previous = stats.nbReads;
+		stats.add(batch.stats);
+		stats.nbReads += batch.size;
+		for(long n = previous - previous%config.chunkSize + config.chunkSize; n <= stats.nbReads; n += config.chunkSize) config.out.println(n + " reads were processed from " + fileName + " [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+		engine.metrics.get(Metrics.JOIN).stop(timer, batch.size, 0);
+	}
+}
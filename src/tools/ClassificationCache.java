@@ -0,0 +1,105 @@
+package tools;
+
+import model.Barcode;
+
+/**
+ * Bounded cache of the classification of the barcode windows. Since only a few TF barcodes exist, the same (BC1, BC2) windows are seen in many reads.
+ * Direct-mapped: each pair of windows has one slot, and a new pair replaces the previous one, so the memory is fixed whatever the number of distinct windows (noisy libraries).
+ * Entries are immutable, so the slots can be read and replaced by several threads without locking (a thread may miss an entry just stored by another one, which only costs a new match).
+ */
+public class ClassificationCache
+{
+	public static final int DEFAULT_SIZE = 1 << 16;
+	private static final int MAX_PACKED_LENGTH = 21; // 3 bits per base + 1 sentinel bit in a long
+
+	// Statistics category of the outcome
+	public static final byte NONE = 0;
+	public static final byte BC1 = 1;
+	public static final byte BC2 = 2;
+	public static final byte BOTH = 3;
+
+	/**
+	 * Outcome of the classification of a pair of windows
+	 */
+	public static final class Entry
+	{
+		final long window1;
+		final long window2;
+		public final Barcode barcode; // null if not consistently mapping to a TF
+		public final byte category;
+		public final String log; // Line of the detailed log, null if none
+
+		public Entry(long window1, long window2, Barcode barcode, byte category, String log)
+		{
+			this.window1 = window1;
+			this.window2 = window2;
+			this.barcode = barcode;
+			this.category = category;
+			this.log = log;
+		}
+	}
+
+	private final Entry[] slots;
+	private final int mask;
+
+	/**
+	 * @param size number of slots (rounded up to a power of 2)
+	 */
+	public ClassificationCache(int size)
+	{
+		int capacity = 1;
+		while(capacity < size) capacity *= 2;
+		this.slots = new Entry[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Packs a window in a long (3 bits per base, as the BarcodeMatcher index: any non-ACGT character is the same)
+	 * @return 0 if the read does not overlap the window, -1 if the window cannot be cached (too long)
+	 */
+	public static long pack(BarcodeWindows windows, int w)
+	{
+		int length = windows.getLength(w);
+		if(length == -1) return 0;
+		if(length > MAX_PACKED_LENGTH) return -1;
+		byte[] window = windows.getWindow(w);
+		int offset = windows.getOffset(w);
+		long key = 1;
+		for(int i = offset; i < offset + length; i++) key = (key << 3) | code(window[i]);
+		return key;
+	}
+
+	/**
+	 * @return the cached outcome of these windows, or null
+	 */
+	public Entry get(long window1, long window2)
+	{
+		Entry e = slots[slot(window1, window2)];
+		if(e != null && e.window1 == window1 && e.window2 == window2) return e;
+		return null;
+	}
+
+	public void put(Entry e)
+	{
+		slots[slot(e.window1, e.window2)] = e;
+	}
+
+	private int slot(long window1, long window2)
+	{
+		long h = window1 * 31 + window2;
+		h = (h ^ (h >>> 32)) * 0x9E3779B97F4A7C15L;
+		return (int)(h >>> 32) & mask;
+	}
+
+	private static int code(byte b)
+	{
+		switch(b)
+		{
+			case 'A': return 1;
+			case 'C': return 2;
+			case 'G': return 3;
+			case 'T': return 4;
+			default: return 5;
+		}
+	}
+}
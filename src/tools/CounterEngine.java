@@ -0,0 +1,254 @@
+package tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import model.Barcode;
+import model.CountAggregator;
+import model.CounterConfig;
+import model.CounterException;
+import model.CounterResult;
+import model.Parameters;
+import model.ReadStatistics;
+import model.SparseCountMatrix;
+
+/**
+ * Counts one library: TF barcodes, R2 pass, R1 join, then the count/UMI matrices.
+ * Everything a run needs is in its CounterConfig and everything it finds is in its CounterResult, so several engines can run at the same time in one JVM (e.g. the Batch tool, or another program embedding TFseqTools).
+ * Invalid inputs and I/O failures throw a CounterException, which ends this run only.
+ */
+public class CounterEngine
+{
+	public final CounterConfig config;
+	public final CounterResult result = new CounterResult();
+	final Metrics metrics = result.metrics;
+
+	TFBarcodes barcodes = null;
+	Logger log = null;
+	ClassificationCache cache = null; // Outcome of the barcode windows already seen
+	private FlankLocator locator = null; // With a vector, copied for each thread
+	final ThreadLocal<WindowExtractor> extractors;
+	final ThreadLocal<FlankLocator> locators = ThreadLocal.withInitial(() -> locator.copy());
+	final ThreadLocal<RawBAMRecord> rawRecords = ThreadLocal.withInitial(RawBAMRecord::new);
+	private final DecimalFormat formatter = new DecimalFormat("##.##");
+
+	public CounterEngine(CounterConfig config)
+	{
+		this.config = config;
+		this.extractors = ThreadLocal.withInitial(() -> new WindowExtractor(config.startBC1, config.endBC1, config.startBC2, config.endBC2));
+	}
+
+	/**
+	 * Runs the counting (once per engine). Progress and summary go to config.out
+	 * @return the matrices and statistics of the run (the matrices are also written in config.outputFolder, if set)
+	 * @throws CounterException if the inputs are invalid or cannot be read
+	 */
+	public CounterResult run()
+	{
+		try
+		{
+			return count();
+		}
+		catch(RuntimeException e)
+		{
+			if(log != null) log.abort(); // Background thread of the log
+			throw e;
+		}
+	}
+
+	private CounterResult count()
+	{
+		long startTime = System.currentTimeMillis();
+		config.prepare();
+		PrintStream out = config.out;
+		ReadStatistics stats = result.stats;
+		log = new Logger(config.logFile, config.logSampling);
+		if(config.cacheSize > 0) cache = new ClassificationCache(config.cacheSize);
+
+		out.println("\n-1- |  Reading TF barcodes");
+		Metrics.Timer timer = Metrics.start();
+		barcodes = config.barcodes != null ? config.barcodes : new TFBarcodes(config.inputTFFile, config.lBC1, config.lBC2); // Unless shared with another run
+		metrics.get(Metrics.BARCODES).stop(timer, barcodes.size(), config.barcodes != null ? 0 : config.inputTFFile.length());
+		out.println(barcodes.size() + " barcodes found in barcode file.");
+		if(config.inputVectorFasta != null)
+		{
+			byte[] vector = Utils.readFasta(config.inputVectorFasta);
+			locator = new FlankLocator(vector, config.startBC1, config.endBC1, config.startBC2, config.endBC2);
+			out.println("Barcodes are located from the vector sequence " + config.inputVectorFasta.getName() + " (l = " + vector.length + ")");
+		}
+
+		if(config.inputVectorFasta != null) out.println("\n-2- |  Reading R2 fastq file");
+		else out.println("\n-2- |  Reading BAM file");
+		ReadNameTable mappedReads = null;
+		LockstepJoin lockstepJoin = null;
+		SortMergeJoin sortMergeJoin = null;
+		CountAggregator aggregator = new CountAggregator(barcodes.size(), config.UMILength);
+		if(config.cellTag != null) // Cell barcodes and UMIs are read from the BAM tags
+		{
+			result.nbMappedReads = AnalyzeAlignedBAM.readTaggedBAM(this, aggregator);
+		}
+		else if(config.lockstepJoin) // R1 is read at the same time
+		{
+			lockstepJoin = new LockstepJoin(this, aggregator);
+			if(config.inputVectorFasta != null) AnalyzeR2FastQ.readR2FastQ(this, lockstepJoin);
+			else AnalyzeAlignedBAM.readR2BAM(this, lockstepJoin);
+			result.nbMappedReads = lockstepJoin.getNbMappedReads();
+		}
+		else if(config.memoryBudget > 0) // R2 reads are sorted, and spilled to disk if over the budget
+		{
+			sortMergeJoin = new SortMergeJoin(this, aggregator, config.memoryBudget);
+			if(config.inputVectorFasta != null) AnalyzeR2FastQ.readR2FastQ(this, sortMergeJoin);
+			else AnalyzeAlignedBAM.readR2BAM(this, sortMergeJoin);
+			result.nbMappedReads = sortMergeJoin.getNbMappedReads();
+		}
+		else
+		{
+			if(config.inputVectorFasta != null) mappedReads = AnalyzeR2FastQ.readR2FastQ(this);
+			else mappedReads = AnalyzeAlignedBAM.readR2BAM(this);
+			result.nbMappedReads = mappedReads.size();
+		}
+		if(config.inputVectorFasta != null) // No alignment
+		{
+			out.println(stats.nbReads + " total reads in R2 fastq file.");
+			out.println(stats.unmapped + " reads without the constant sequences around the barcodes.");
+			out.println(stats.tooLowSQUAL + " too Low SQual.");
+		}
+		else
+		{
+			out.println(stats.nbReads + " total reads in BAM file.");
+			out.println(stats.unmapped + " unmapped reads in BAM file.");
+			String scope = config.regionQuery ? " (among the records overlapping the barcodes)" : "";
+			out.println(stats.notUnique + " not unique alignments" + scope + ".");
+			out.println(stats.tooLowAQUAL + " too Low AQual" + scope + ".");
+			out.println(stats.tooLowSQUAL + " too Low SQual" + scope + ".");
+		}
+		if(config.cellTag != null) out.println(result.missingTag + " reads mapping to TFs were ignored (no '" + config.cellTag + "' or '" + config.umiTag + "' tag).");
+		out.println(result.nbMappedReads + " reads are consistently mapping to existing TFs.");
+		out.println((stats.nbReads - result.nbMappedReads) + " reads are not mapping to TFs\t(" + formatter.format(((stats.nbReads - result.nbMappedReads) / (float)stats.nbReads) * 100) + "%)");
+		out.println(stats.overlapBC1 + " reads overlap with barcode 1 only\t(" + formatter.format((stats.overlapBC1 / (float)stats.nbReads) * 100) + "%)");
+		out.println(stats.overlapBC2 + " reads overlap with barcode 2 only\t(" + formatter.format((stats.overlapBC2 / (float)stats.nbReads) * 100) + "%)");
+		out.println(stats.overlapBoth + " reads overlap with both barcodes\t(" + formatter.format((stats.overlapBoth / (float)stats.nbReads) * 100) + "%)");
+		if(cache != null && stats.cacheHits + stats.cacheMisses > 0) out.println(stats.cacheHits + " barcode windows were found in the cache, " + stats.cacheMisses + " were matched\t(hit rate " + formatter.format((stats.cacheHits / (float)(stats.cacheHits + stats.cacheMisses)) * 100) + "%)");
+
+		out.println("\n-3- |  Reading R1 fastq file");
+		if(config.cellTag != null) out.println("Skipped: cell barcodes and UMIs were read from the BAM tags.");
+		else
+		{
+			if(lockstepJoin != null) lockstepJoin.finish();
+			else if(sortMergeJoin != null) sortMergeJoin.finish();
+			else Utils.readR1Fastq(this, mappedReads, aggregator); // Reads are aggregated while parsed
+			out.println(result.nbReadsR1 + " total reads in FASTQ file.");
+		}
+		result.nbMatchingReads = aggregator.getNbReads();
+		result.nbCells = aggregator.getNbCells();
+		if(config.cellTag != null) out.println(result.nbMatchingReads + " TF reads with a cell barcode and a UMI");
+		else out.println(result.nbMatchingReads + " R2 TF reads were matching R1 fastq file");
+		out.println(result.nbCells + " unique CELL barcodes were found.");
+
+		// Count and UMI matrices (non-empty entries only)
+		result.tfs = barcodes.list;
+		result.cells = aggregator.getCells();
+		result.counts = aggregator.getCounts();
+		result.umis = aggregator.getCorrectedUMIs(config.hammingDistanceUMI, config.nbThreads, config.pool, metrics.get(Metrics.UMI_CORRECTION)); // Corrected in parallel
+
+		if(config.outputFolder != null)
+		{
+			timer = Metrics.start();
+			long bytes = 0;
+			if(!config.outputFormat.equals("mtx")) // Dense matrices
+			{
+				bytes += writeMatrix(config.outputFolder + "Results.Matrix.txt", result.counts);
+				bytes += writeMatrix(config.outputFolder + "Results.Matrix.UMI.txt", result.umis);
+			}
+			if(!config.outputFormat.equals("tsv")) // Sparse matrices
+			{
+				ExecutorService pool = config.pool != null ? config.pool : Executors.newFixedThreadPool(config.nbThreads); // Compressing the 6 files
+				try
+				{
+					MatrixMarketWriter.write(config.outputFolder + "Results.Matrix/", result.counts, result.tfs, result.cells, pool, config.nbThreads);
+					MatrixMarketWriter.write(config.outputFolder + "Results.Matrix.UMI/", result.umis, result.tfs, result.cells, pool, config.nbThreads);
+				}
+				finally
+				{
+					if(pool != config.pool) pool.shutdown();
+				}
+				for(String folder:new String[] {"Results.Matrix/", "Results.Matrix.UMI/"})
+				{
+					File[] files = new File(config.outputFolder + folder).listFiles();
+					if(files != null) for(File f:files) bytes += f.length();
+				}
+			}
+			metrics.get(Metrics.MATRIX_WRITE).stop(timer, result.counts.size() + result.umis.size(), bytes);
+		}
+		log.close();
+		result.time = System.currentTimeMillis() - startTime;
+		if(config.outputFolder != null) metrics.write(new File(config.outputFolder + "metrics.json"), statistics());
+		return result;
+	}
+
+	/**
+	 * Inputs and counts of the run, for metrics.json
+	 */
+	private LinkedHashMap<String, Object> statistics()
+	{
+		ReadStatistics stats = result.stats;
+		LinkedHashMap<String, Object> s = new LinkedHashMap<String, Object>();
+		s.put("version", Parameters.currentVersion);
+		s.put("r1", config.inputFastQFileR1 == null ? null : config.inputFastQFileR1.getAbsolutePath());
+		s.put("r2", config.inputBAMFileR2.getAbsolutePath());
+		s.put("tf", config.inputTFFile == null ? null : config.inputTFFile.getAbsolutePath());
+		s.put("threads", config.nbThreads);
+		s.put("nbReads", stats.nbReads);
+		s.put("unmapped", stats.unmapped);
+		s.put("notUnique", stats.notUnique);
+		s.put("tooLowAQUAL", stats.tooLowAQUAL);
+		s.put("tooLowSQUAL", stats.tooLowSQUAL);
+		s.put("missingTag", result.missingTag);
+		s.put("overlapBC1", stats.overlapBC1);
+		s.put("overlapBC2", stats.overlapBC2);
+		s.put("overlapBoth", stats.overlapBoth);
+		s.put("cacheHits", stats.cacheHits);
+		s.put("cacheMisses", stats.cacheMisses);
+		s.put("nbMappedReads", result.nbMappedReads);
+		s.put("nbReadsR1", result.nbReadsR1);
+		s.put("nbMatchingReads", result.nbMatchingReads);
+		s.put("nbCells", result.nbCells);
+		s.put("timeMs", result.time);
+		return s;
+	}
+
+	/**
+	 * Writes a TF x cell matrix as a dense tab-separated file (one row per TF, one column per cell barcode)
+	 * @return the size of the file
+	 */
+	private long writeMatrix(String path, SparseCountMatrix matrix)
+	{
+		try
+		{
+			BufferedWriter results = new BufferedWriter(new FileWriter(path));
+			results.write("TFName\tTFId");
+			for(String bc:result.cells) results.write("\t" + bc);
+			results.write("\n");
+			for(int tf = 0; tf < result.tfs.size(); tf++)
+			{
+				Barcode b = result.tfs.get(tf);
+				results.write(b.name + "\t" + b.id);
+				for(int cell = 0; cell < result.cells.size(); cell++) results.write("\t" + matrix.get(tf, cell));
+				results.write("\n");
+			}
+			results.close();
+		}
+		catch(IOException ioe)
+		{
+			throw new CounterException(ioe.getMessage(), ioe);
+		}
+		return new File(path).length();
+	}
+}
@@ -0,0 +1,282 @@
+package tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import model.CounterException;
+
+
+/**
+ * FastQ parser working on a byte[] buffer: each call to next() slices the name, the sequence and the qualities of the next record as offsets in the buffer, without creating any object.
+ * The slices are valid until the next call to next().
+ */
+public class FastqParser implements Closeable
+{
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final InputStream in;
+	private final String description; // For the error messages
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0; // Start of the next record
+	private int limit = 0; // End of the data in the buffer
+	private boolean eof = false;
+	private int nameOffset, nameLength, sequenceOffset, sequenceLength, qualityOffset, qualityLength;
+
+	public FastqParser(InputStream in)
+	{
+		this(in, "R1 fastq file");
+	}
+
+	/**
+	 * @param description name of the file in the error messages (e.g. "R2 fastq file")
+	 */
+	public FastqParser(InputStream in, String description)
+	{
+		this.in = in;
+		this.description = description;
+	}
+
+	/**
+	 * Parser on a memory-mapped uncompressed FastQ file
+	 */
+	public static FastqParser map(File fastQ) throws IOException
+	{
+		return map(fastQ, "R1 fastq file");
+	}
+
+	public static FastqParser map(File fastQ, String description) throws IOException
+	{
+		return new FastqParser(new MappedFileInputStream(fastQ), description);
+	}
+
+	/**
+	 * Parses the next record
+	 * @return false at the end of the file
+	 */
+	public boolean next()
+	{
+		try
+		{
+			while(true)
+			{
+				if(position == limit)
+				{
+					if(eof) return false;
+					fill();
+					continue;
+				}
+				if(parse()) return true;
+				if(eof) throw new CounterException(description + " has formatting issues"); // Truncated record
+				fill();
+			}
+		}
+		catch(IOException ioe)
+		{
+			throw new CounterException(ioe.getMessage(), ioe);
+		}
+	}
+
+	/**
+	 * Parses the record at the current position
+	 * @return false if the record is not fully in the buffer (only the two first lines are mandatory at the end of the file)
+	 */
+	private boolean parse()
+	{
+		int e1 = endOfLine(position);
+		if(e1 == -1) return false;
+		int e2 = endOfLine(e1 + 1);
+		if(e2 == -1) return false;
+		int e3 = endOfLine(e2 + 1);
+		int e4 = e3 == -1 ? -1 : endOfLine(e3 + 1);
+		if(e4 == -1 && !eof) return false;
+
+		// First line = @READNAME INDEX
+		if(buffer[position] != '@') throw new CounterException(description + " has formatting issues");
+		nameOffset = position + 1;
+		int p = nameOffset;
+		while(p < e1 && buffer[p] != ' ' && buffer[p] != '\r') p++;
+		nameLength = p - nameOffset;
+
+		// Second line = READ (trimmed)
+		int s = e1 + 1;
+		int e = e2;
+		while(s < e && (buffer[s] & 0xFF) <= ' ') s++;
+		while(e > s && (buffer[e - 1] & 0xFF) <= ' ') e--;
+		sequenceOffset = s;
+		sequenceLength = e - s;
+
+		// Third line = we don't care, fourth line = QUALITIES (trimmed)
+		qualityOffset = s = e3 == -1 ? e2 : e3 + 1;
+		e = e3 == -1 ? e2 : e4 == -1 ? limit : e4;
+		while(e > s && (buffer[e - 1] & 0xFF) <= ' ') e--;
+		qualityLength = Math.max(e - s, 0);
+
+		position = Math.min(limit, (e4 != -1 ? e4 : e3 != -1 ? e3 : e2) + 1);
+		return true;
+	}
+
+	/**
+	 * @return the position of the '\n' ending the line starting at 'from' (or the end of the data, if the file does not end with '\n'), or -1 if the line is not fully in the buffer
+	 */
+	private int endOfLine(int from)
+	{
+		if(from >= limit) return -1;
+		for(int i = from; i < limit; i++) if(buffer[i] == '\n') return i;
+		return eof ? limit : -1;
+	}
+
+	/**
+	 * Moves the current record at the start of the buffer (which is enlarged if the record does not fit), and reads more data
+	 */
+	private void fill() throws IOException
+	{
+		if(position > 0)
+		{
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		if(limit == buffer.length)
+		{
+			byte[] larger = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, larger, 0, limit);
+			buffer = larger;
+		}
+		int n = in.read(buffer, limit, buffer.length - limit);
+		if(n == -1) eof = true;
+		else limit += n;
+	}
+
+	public byte[] getBuffer()
+	{
+		return buffer;
+	}
+
+	public int getNameOffset()
+	{
+		return nameOffset;
+	}
+
+	public int getNameLength()
+	{
+		return nameLength;
+	}
+
+	public int getSequenceOffset()
+	{
+		return sequenceOffset;
+	}
+
+	public int getSequenceLength()
+	{
+		return sequenceLength;
+	}
+
+	public int getQualityOffset()
+	{
+		return qualityOffset;
+	}
+
+	/**
+	 * @return 0 if the record has no quality line (last record of a truncated file)
+	 */
+	public int getQualityLength()
+	{
+		return qualityLength;
+	}
+
+	public String getName()
+	{
+		return new String(buffer, nameOffset, nameLength, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return the subsequence [start, end[ of the read
+	 */
+	public String getSequence(int start, int end)
+	{
+		return new String(buffer, sequenceOffset + start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	public String getSequence()
+	{
+		return getSequence(0, sequenceLength);
+	}
+
+	/**
+	 * @return true if the name of the current record is this one
+	 */
+	public boolean nameEquals(byte[] name)
+	{
+		if(name.length != nameLength) return false;
+		for(int i = 0; i < nameLength; i++) if(buffer[nameOffset + i] != name[i]) return false;
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+
+	/**
+	 * Stream on a file mapped in memory by windows (a single mapping is limited to 2 GB)
+	 */
+	private static class MappedFileInputStream extends InputStream
+	{
+		private static final long WINDOW_SIZE = 1L << 28;
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long size;
+		private long windowStart = 0;
+		private MappedByteBuffer window = null;
+
+		public MappedFileInputStream(File f) throws IOException
+		{
+			this.file = new RandomAccessFile(f, "r");
+			this.channel = file.getChannel();
+			this.size = channel.size();
+		}
+
+		private boolean ensureData() throws IOException
+		{
+			if(window != null && window.hasRemaining()) return true;
+			if(window != null) windowStart += window.capacity();
+			if(windowStart >= size) return false;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if(!ensureData()) return -1;
+			return window.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if(len == 0) return 0;
+			if(!ensureData()) return -1;
+			int n = Math.min(len, window.remaining());
+			window.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			window = null;
+			channel.close();
+			file.close();
+		}
+	}
+}
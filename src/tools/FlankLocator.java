@@ -0,0 +1,276 @@
+package tools;
+
+import model.CounterException;
+
+/**
+ * Locates the two barcode windows in a raw (not aligned) R2 read, from the constant sequences of the vector around them.
+ * The k-mers of the vector around the windows (FLANK_LENGTH bases on each side, and the spacer between them) are indexed once. The read and its reverse complement are scanned for these k-mers,
+ * and each window is placed from the closest k-mer on each side, so that sequencing errors in the flanks and small indels (offsets) between the k-mers and the window are tolerated.
+ * Same conventions as WindowExtractor: a window partially covered by the read is completed with 'N'. If the two anchors of a window disagree (indel in the barcode), the bases between them are returned.
+ * The index is shared, the buffers are not (one copy per thread).
+ */
+public class FlankLocator implements BarcodeWindows
+{
+	public static final int K = 12;
+	public static final int FLANK_LENGTH = 30;
+	private static final int MAX_OFFSET = 3; // Max shift of a k-mer from the main diagonal of the read
+
+	// Shared index
+	private final int[] starts; // Windows, in template coordinates
+	private final int[] ends;
+	private final int templateLength;
+	private final int[] table; // k-mer + 1, 0 if empty
+	private final int[] positions; // Position of the k-mer in the template, -1 if not unique
+	private final int mask;
+
+	// Buffers
+	private final byte[][] windows = new byte[2][];
+	private final int[] lengths = new int[2]; // -1 if the read does not overlap the window
+	private byte[] reverse = new byte[256];
+	private int[][] hitsRead = new int[2][256]; // Per strand
+	private int[][] hitsTemplate = new int[2][256];
+	private int[] diagonals = new int[512];
+
+	/**
+	 * @param vector sequence of the vector (upper case)
+	 * @param startBC1 1-based positions of the barcodes in the vector
+	 */
+	public FlankLocator(byte[] vector, int startBC1, int endBC1, int startBC2, int endBC2)
+	{
+		if(Math.max(endBC1, endBC2) > vector.length) throw new CounterException("The barcode positions [" + startBC1 + ", " + endBC2 + "] are outside of the vector sequence (l = " + vector.length + ")");
+		int templateStart = Math.max(1, Math.min(startBC1, startBC2) - FLANK_LENGTH);
+		int templateEnd = Math.min(vector.length, Math.max(endBC1, endBC2) + FLANK_LENGTH);
+		this.templateLength = templateEnd - templateStart + 1;
+		this.starts = new int[] { startBC1 - templateStart, startBC2 - templateStart };
+		this.ends = new int[] { endBC1 - templateStart, endBC2 - templateStart };
+
+		// Index of the k-mers that do not overlap the windows
+		int capacity = 64;
+		while(capacity < 4 * templateLength) capacity *= 2;
+		this.table = new int[capacity];
+		this.positions = new int[capacity];
+		this.mask = capacity - 1;
+		int nbKmers = 0;
+		int code = 0;
+		int valid = 0; // Number of consecutive ACGT bases
+		for(int p = 0; p < templateLength; p++)
+		{
+			int c = encode(vector[templateStart - 1 + p]);
+			if(c == -1) valid = 0;
+			else
+			{
+				code = ((code << 2) | c) & ((1 << (2 * K)) - 1);
+				valid++;
+			}
+			int from = p - K + 1;
+			if(valid < K || overlapsWindow(from, p)) continue;
+			int slot = find(code);
+			if(table[slot] == 0)
+			{
+				table[slot] = code + 1;
+				positions[slot] = from;
+				nbKmers++;
+			}
+			else positions[slot] = -1; // Repeated in the template
+		}
+		if(nbKmers == 0) throw new CounterException("No constant sequence was found around the barcodes in the vector, they cannot be located in the reads");
+		windows[0] = new byte[64];
+		windows[1] = new byte[64];
+	}
+
+	/**
+	 * New locator sharing the index of this one
+	 */
+	private FlankLocator(FlankLocator index)
+	{
+		this.starts = index.starts;
+		this.ends = index.ends;
+		this.templateLength = index.templateLength;
+		this.table = index.table;
+		this.positions = index.positions;
+		this.mask = index.mask;
+		windows[0] = new byte[64];
+		windows[1] = new byte[64];
+	}
+
+	/**
+	 * @return a locator for another thread
+	 */
+	public FlankLocator copy()
+	{
+		return new FlankLocator(this);
+	}
+
+	/**
+	 * Locates and extracts both windows (on the strand of the read having the most k-mers of the vector)
+	 * @return false if no k-mer of the vector was found in the read
+	 */
+	public boolean locate(byte[] bases, int offset, int length)
+	{
+		if(reverse.length < length)
+		{
+			reverse = new byte[length * 2];
+			hitsRead = new int[2][length * 2];
+			hitsTemplate = new int[2][length * 2];
+		}
+		for(int i = 0; i < length; i++) reverse[length - 1 - i] = complement(bases[offset + i]);
+		int nbForward = scan(bases, offset, length, 0);
+		int nbReverse = scan(reverse, 0, length, 1);
+		if(nbForward == 0 && nbReverse == 0)
+		{
+			lengths[0] = -1;
+			lengths[1] = -1;
+			return false;
+		}
+		if(nbForward >= nbReverse) extract(bases, offset, length, 0, nbForward);
+		else extract(reverse, 0, length, 1, nbReverse);
+		return true;
+	}
+
+	/**
+	 * Stores the k-mers of the template found in the read
+	 * @return the number of k-mers found
+	 */
+	private int scan(byte[] bases, int offset, int length, int strand)
+	{
+		int nbHits = 0;
+		int code = 0;
+		int valid = 0;
+		for(int i = 0; i < length; i++)
+		{
+			int c = encode(bases[offset + i]);
+			if(c == -1) valid = 0;
+			else
+			{
+				code = ((code << 2) | c) & ((1 << (2 * K)) - 1);
+				valid++;
+			}
+			if(valid < K) continue;
+			int slot = find(code);
+			if(table[slot] == 0 || positions[slot] == -1) continue;
+			hitsRead[strand][nbHits] = i - K + 1;
+			hitsTemplate[strand][nbHits] = positions[slot];
+			nbHits++;
+		}
+		return nbHits;
+	}
+
+	/**
+	 * Places each window from the closest k-mers on its left and right, among the k-mers close to the main diagonal (read position - template position)
+	 */
+	private void extract(byte[] bases, int offset, int length, int strand, int nbHits)
+	{
+		int[] read = hitsRead[strand];
+		int[] template = hitsTemplate[strand];
+
+		// Main diagonal
+		int shift = templateLength; // Diagonals are in ]-templateLength, length[
+		if(diagonals.length < length + templateLength) diagonals = new int[2 * (length + templateLength)];
+		int best = 0;
+		for(int h = 0; h < nbHits; h++)
+		{
+			int d = read[h] - template[h] + shift;
+			if(++diagonals[d] > diagonals[read[best] - template[best] + shift]) best = h;
+		}
+		int mainDiagonal = read[best] - template[best];
+		for(int h = 0; h < nbHits; h++) diagonals[read[h] - template[h] + shift] = 0;
+
+		for(int w = 0; w < 2; w++)
+		{
+			int left = -1, right = -1; // Closest k-mers
+			for(int h = 0; h < nbHits; h++)
+			{
+				if(Math.abs(read[h] - template[h] - mainDiagonal) > MAX_OFFSET) continue;
+				if(template[h] + K - 1 < starts[w] && (left == -1 || template[h] > template[left])) left = h;
+				if(template[h] > ends[w] && (right == -1 || template[h] < template[right])) right = h;
+			}
+			if(left == -1 && right == -1)
+			{
+				lengths[w] = -1;
+				continue;
+			}
+			int windowLength = ends[w] - starts[w] + 1;
+			int start, end; // In the read
+			if(left != -1) start = starts[w] + read[left] - template[left];
+			else start = ends[w] + read[right] - template[right] - windowLength + 1;
+			if(right != -1) end = ends[w] + read[right] - template[right];
+			else end = start + windowLength - 1;
+			if(end < start || start >= length || end < 0) // Deleted, or not covered by the read
+			{
+				lengths[w] = -1;
+				continue;
+			}
+			int n = end - start + 1;
+			if(windows[w].length < n) windows[w] = new byte[2 * n];
+			for(int i = 0; i < n; i++)
+			{
+				int pos = start + i;
+				windows[w][i] = (pos >= 0 && pos < length) ? bases[offset + pos] : (byte)'N'; // Completed with polyN if missing part of barcode
+			}
+			lengths[w] = n;
+		}
+	}
+
+	private int find(int code)
+	{
+		int i = ((code * 0x9E3779B1) >>> 16) & mask;
+		while(table[i] != 0 && table[i] != code + 1) i = (i + 1) & mask;
+		return i;
+	}
+
+	private boolean overlapsWindow(int from, int to)
+	{
+		for(int w = 0; w < 2; w++) if(from <= ends[w] && to >= starts[w]) return true;
+		return false;
+	}
+
+	private static int encode(byte b)
+	{
+		switch(b)
+		{
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+
+	private static byte complement(byte b)
+	{
+		switch(b)
+		{
+			case 'A': return 'T';
+			case 'C': return 'G';
+			case 'G': return 'C';
+			case 'T': return 'A';
+			default: return 'N';
+		}
+	}
+
+	@Override
+	public byte[] getWindow(int w)
+	{
+		return windows[w];
+	}
+
+	@Override
+	public int getOffset(int w)
+	{
+		return 0;
+	}
+
+	@Override
+	public int getLength(int w)
+	{
+		return lengths[w];
+	}
+
+	@Override
+	public boolean isOnly(int w, byte b)
+	{
+		if(lengths[w] != ends[w] - starts[w] + 1) return false;
+		for(int i = 0; i < lengths[w]; i++) if(windows[w][i] != b) return false;
+		return true;
+	}
+}
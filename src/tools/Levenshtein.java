@@ -1,12 +1,15 @@
 package tools;
 
-import model.ErrorMessage;
+import model.CounterException;
 
 public final class Levenshtein
 {
 	private final float maxCost;
 	private final float insertDelete;
 	private final float substitute;
+	private final boolean unitCost; // Bit-parallel distance can be used
+	
+	private static final int WORD_SIZE = 64; // Max length of the shortest sequence for the bit-parallel distance
 
 	/**
 	 * Constructs a new weighted Levenshtein metric. When the cost for
@@ -22,11 +25,12 @@ public final class Levenshtein
 	 */
 	public Levenshtein(float insertDelete, float substitute) 
 	{
-		if(insertDelete <= 0) new ErrorMessage("Levenshtein: insertDelete argument should be > 0");
-		if(substitute < 0) new ErrorMessage("Levenshtein: substitute argument should be >= 0");
+		if(insertDelete <= 0) throw new CounterException("Levenshtein: insertDelete argument should be > 0");
+		if(substitute < 0) throw new CounterException("Levenshtein: substitute argument should be >= 0");
 		this.maxCost = Math.max(insertDelete, substitute);
 		this.insertDelete = insertDelete;
 		this.substitute = substitute;
+		this.unitCost = insertDelete == 1.0f && substitute == 1.0f;
 	}
 
 	public Levenshtein() 
@@ -40,11 +44,38 @@ public final class Levenshtein
 		return 1.0f - (distance(a, b) / (maxCost * Math.max(a.length(), b.length())));
 	}
 
+	/**
+	 * Same as compare(a, b) when the result is > minSimilarity. Otherwise the computation can stop early, and the returned value is only guaranteed to be <= minSimilarity.
+	 */
+	public float compare(final String a, final String b, final double minSimilarity) 
+	{
+		if (a.isEmpty() && b.isEmpty()) return 1.0f;
+		if (!unitCost) return compare(a, b);
+		final int maxLength = Math.max(a.length(), b.length());
+		int maxDistance = -1; // Largest distance that still passes minSimilarity
+		while (maxDistance < maxLength && 1.0f - ((maxDistance + 1) / (maxCost * maxLength)) > minSimilarity) maxDistance++;
+		return 1.0f - (distance(a, b, maxDistance) / (maxCost * maxLength));
+	}
+
 	public float distance(final String s, final String t) 
+	{
+		return distance(s, t, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Distance between s and t. If it is greater than maxDistance, any value > maxDistance can be returned (only for unit costs).
+	 */
+	public float distance(final String s, final String t, final int maxDistance) 
 	{
 		if (s.isEmpty()) return t.length();
 		if (t.isEmpty()) return s.length();
 		if (s.equals(t)) return 0;
+		
+		if (unitCost)
+		{
+			if (s.length() <= t.length() && s.length() <= WORD_SIZE) return bitParallelDistance(s, t, maxDistance);
+			if (t.length() <= WORD_SIZE) return bitParallelDistance(t, s, maxDistance);
+		}
 
 		final int tLength = t.length();
 		final int sLength = s.length();
@@ -78,6 +109,61 @@ public final class Levenshtein
 		return v0[tLength];
 	}
 
+	/**
+	 * Myers/Hyyro bit-parallel edit distance (unit costs). The pattern (length <= 64) is held in one word, each bit being a row of the DP matrix.
+	 * A/C/G/T are 2-bit encoded to select the match masks; any other character is matched by scanning the pattern.
+	 */
+	private static int bitParallelDistance(final String pattern, final String text, final int maxDistance)
+	{
+		final int m = pattern.length();
+		final int n = text.length();
+		long peqA = 0L, peqC = 0L, peqG = 0L, peqT = 0L;
+		for (int i = 0; i < m; i++) 
+		{
+			switch (pattern.charAt(i))
+			{
+				case 'A': peqA |= 1L << i; break;
+				case 'C': peqC |= 1L << i; break;
+				case 'G': peqG |= 1L << i; break;
+				case 'T': peqT |= 1L << i; break;
+			}
+		}
+		
+		final long last = 1L << (m - 1);
+		long pv = -1L;
+		long mv = 0L;
+		int score = m;
+		for (int j = 0; j < n; j++) 
+		{
+			final char c = text.charAt(j);
+			long eq = 0L;
+			switch (c)
+			{
+				case 'A': eq = peqA; break;
+				case 'C': eq = peqC; break;
+				case 'G': eq = peqG; break;
+				case 'T': eq = peqT; break;
+				default: for (int i = 0; i < m; i++) if (pattern.charAt(i) == c) eq |= 1L << i;
+			}
+			
+			final long xv = eq | mv;
+			final long xh = (((eq & pv) + pv) ^ pv) | eq;
+			long ph = mv | ~(xh | pv);
+			long mh = pv & xh;
+			if ((ph & last) != 0) score++;
+			else if ((mh & last) != 0) score--;
+			
+			// Each remaining column can decrease the score by 1 at most
+			if (score - (n - j - 1) > maxDistance) return score - (n - j - 1);
+			
+			ph = (ph << 1) | 1L;
+			mh = mh << 1;
+			pv = mh | ~(xv | ph);
+			mv = ph & xv;
+		}
+		return score;
+	}
+	
 	@Override
 	public String toString() 
 	{
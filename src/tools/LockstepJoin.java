@@ -0,0 +1,128 @@
+package tools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+import model.Barcode;
+import model.CountAggregator;
+import model.CounterConfig;
+import model.CounterException;
+
+/**
+ * Join of the R2 BAM records with the R1 FastQ file while the BAM file is read, for BAM files that keep the order of the FastQ file (e.g. unsorted STAR output).
+ * The R1 file is advanced until the name of each mapped read is found, so no read name needs to be kept in memory.
+ * If a read cannot be found within the next MAX_LOOKAHEAD reads of the R1 file (i.e. the order differs), it falls back to the hash join (readR2BAM/readR1Fastq) for this read and all following ones.
+ * Reads are aggregated with their index in the R1 file as rank, so the matrices are the ones of the hash join, even after a fallback.
+ */
+public class LockstepJoin implements BiConsumer<String, Barcode>
+{
+	private static final int MAX_LOOKAHEAD = 1 << 20; // R1 reads skipped for finding one R2 read, before falling back (the R1 file is read again by the fallback)
+
+	private final CounterEngine engine;
+	private final CounterConfig config;
+	private FastqParser parser;
+	private final CountAggregator aggregator;
+	private ReadNameTable remainingReads = null; // Reads after the first out-of-order one
+	private SortMergeJoin sortMergeJoin = null; // Instead of remainingReads, with a memory budget
+	private String lastReadName = null; // Last read joined in lockstep (for checking duplicated read names)
+	private long nbReadsR1 = 0;
+	private long nbMappedReads = 0;
+
+	public LockstepJoin(CounterEngine engine, CountAggregator aggregator)
+	{
+		this.engine = engine;
+		this.config = engine.config;
+		this.aggregator = aggregator;
+		this.parser = Utils.parseFastq(config.inputFastQFileR1, config.nbInflateThreads);
+	}
+
+	@Override
+	public void accept(String readName, Barcode bc)
+	{
+		if(sortMergeJoin != null) // Fallback to the sort-merge join
+		{
+			sortMergeJoin.accept(readName, bc);
+			if(bc != null) nbMappedReads++;
+			return;
+		}
+		if(remainingReads != null) // Fallback to the hash join
+		{
+			if(remainingReads.containsKey(readName)) throw new CounterException("Duplicated read names: " + readName);
+			if(bc != null)
+			{
+				remainingReads.put(readName, bc.index);
+				nbMappedReads++;
+			}
+			return;
+		}
+
+		// Check duplicated read names (only consecutive ones can be seen in lockstep, others are out of order)
+		if(readName.equals(lastReadName)) throw new CounterException("Duplicated read names: " + readName);
+		if(bc == null) return;
+		nbMappedReads++;
+
+		// Advance R1 until this read
+		byte[] name = readName.getBytes(StandardCharsets.ISO_8859_1);
+		boolean found = false;
+		long from = nbReadsR1 + 1; // First R1 read searched
+		while(!found && nbReadsR1 - from + 1 < MAX_LOOKAHEAD && parser.next())
+		{
+			nbReadsR1++;
+			Utils.checkR1Read(parser, config);
+			found = parser.nameEquals(name);
+		}
+		if(!found) // Not found in the next reads of R1 => not in the same order
+		{
+			Utils.close(parser);
+			parser = null;
+			config.out.println("Read " + readName + " was not found in the same order in R1 fastq file (searched from R1 read " + from + " to " + nbReadsR1 + ").");
+			if(config.memoryBudget > 0)
+			{
+				config.out.println("Switching to the sort-merge join for the remaining reads.");
+				sortMergeJoin = new SortMergeJoin(engine, aggregator, config.memoryBudget);
+				sortMergeJoin.accept(readName, bc);
+			}
+			else
+			{
+				config.out.println("Switching to the hash join for the remaining reads.");
+				remainingReads = new ReadNameTable();
+				remainingReads.put(readName, bc.index);
+			}
+			return;
+		}
+		Utils.addR1Read(parser, bc.index, nbReadsR1 - 1, aggregator, config);
+		lastReadName = readName;
+	}
+
+	/**
+	 * Number of reads consistently mapping to TFs
+	 */
+	public long getNbMappedReads()
+	{
+		return nbMappedReads;
+	}
+
+	/**
+	 * To call once the BAM file is read: finishes the R1 file (or runs the hash join for out-of-order reads)
+	 */
+	public void finish()
+	{
+		if(sortMergeJoin != null) sortMergeJoin.finish();
+		else if(remainingReads == null)
+		{
+			config.out.println("\nAll R2 TF reads were found in the same order in the R1 fastq file " + config.inputFastQFileR1.getName());
+			Metrics.Timer timer = Metrics.start();
+			long nbRemaining = 0;
+			while(parser.next()) // Only for counting the reads
+			{
+				nbReadsR1++;
+				nbRemaining++;
+				Utils.checkR1Read(parser, config);
+			}
+			Utils.close(parser);
+			engine.result.nbReadsR1 = nbReadsR1;
+			engine.metrics.get(Metrics.JOIN).stop(timer, nbRemaining, config.inputFastQFileR1.length());
+		}
+		else Utils.readR1Fastq(engine, remainingReads, aggregator);
+	}
+}
@@ -4,54 +4,194 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
-import model.ErrorMessage;
+import model.CounterException;
 
-public class Logger 
+
+/**
+ * Detailed log of one run (nothing is written if there is no log file). Can be written from several threads.
+ * The per-read lines (outcome of the barcode windows) are counted, and the counts are written at the end, by outcome and by barcode combination.
+ * The lines themselves (all of them, or one every N reads) go through a bounded lock-free queue to a background thread writing the file, so the reading threads never wait for the disk.
+ */
+public class Logger
 {
-	public static BufferedWriter log = null;
-	
-	public static void init(File logFilePath)
+	public static final int DEFAULT_SAMPLING = 1; // All the per-read lines
+	private static final int QUEUE_CAPACITY = 1 << 16; // Lines
+
+	private BufferedWriter log = null;
+	private final int sampling;
+	private final ConcurrentHashMap<String, LongAdder> outcomes = new ConcurrentHashMap<String, LongAdder>(); // Per-read line => number of reads
+	private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger queued = new AtomicInteger(0);
+	private final AtomicLong nbLines = new AtomicLong(0);
+	private final LongAdder dropped = new LongAdder();
+	private volatile boolean closed = false;
+	private volatile IOException failure = null; // Of the background thread, thrown to the reading threads
+	private Thread writer = null;
+
+	/**
+	 * @param logFilePath null for no log
+	 */
+	public Logger(File logFilePath)
 	{
+		this(logFilePath, DEFAULT_SAMPLING);
+	}
+
+	/**
+	 * @param logFilePath null for no log
+	 * @param sampling one per-read line is written every 'sampling' reads (1 for all of them, 0 for the counts only)
+	 */
+	public Logger(File logFilePath, int sampling)
+	{
+		this.sampling = sampling;
 		if(logFilePath != null)
 		{
 			try
 			{
-				Logger.log = new BufferedWriter(new FileWriter(logFilePath));
+				this.log = new BufferedWriter(new FileWriter(logFilePath));
 			}
 			catch(IOException ioe)
 			{
-				new ErrorMessage(ioe.getMessage());
+				throw new CounterException(ioe.getMessage(), ioe);
+			}
+			this.writer = new Thread(this::drain, "TFseqTools-log");
+			this.writer.setDaemon(true);
+			this.writer.start();
+		}
+	}
+
+	/**
+	 * @return false if there is no log file (the per-read lines do not need to be built)
+	 */
+	public boolean isEnabled()
+	{
+		return log != null;
+	}
+
+	/**
+	 * Writes a message (never dropped: waits if the queue is full)
+	 */
+	public void write(String toWrite)
+	{
+		if(log != null) while(!offer(toWrite)) LockSupport.parkNanos(100000);
+	}
+
+	/**
+	 * Counts the outcome of one read, and writes its line if sampled. With sampling, the line is dropped if the queue is full.
+	 */
+	public void record(String line)
+	{
+		if(log == null) return;
+		LongAdder count = outcomes.get(line);
+		if(count == null) count = outcomes.computeIfAbsent(line, k -> new LongAdder());
+		count.increment();
+		if(sampling == 0) return;
+		if(sampling == 1) write(line);
+		else if(nbLines.incrementAndGet() % sampling == 0 && !offer(line)) dropped.increment();
+	}
+
+	private boolean offer(String line)
+	{
+		if(failure != null) throw new CounterException(failure.getMessage(), failure);
+		if(queued.incrementAndGet() > QUEUE_CAPACITY)
+		{
+			queued.decrementAndGet();
+			return false;
+		}
+		queue.offer(line);
+		return true;
+	}
+
+	/**
+	 * Background thread: writes the queued lines until the log is closed
+	 */
+	private void drain()
+	{
+		try
+		{
+			while(true)
+			{
+				boolean last = closed; // Read before polling: once closed, an empty queue stays empty
+				String line = queue.poll();
+				if(line != null)
+				{
+					queued.decrementAndGet();
+					log.write(line);
+				}
+				else if(last) return;
+				else LockSupport.parkNanos(1000000);
 			}
 		}
+		catch(IOException ioe)
+		{
+			failure = ioe;
+		}
 	}
-	
-	public static void write(String toWrite)
+
+	/**
+	 * Writes the remaining lines, then the counts by outcome, and closes the file
+	 */
+	public void close()
 	{
-		if(log != null)
+		if(this.log != null)
 		{
+			closed = true;
 			try
 			{
-				Logger.log.write(toWrite);
+				writer.join();
+				if(failure != null) throw failure;
+				ArrayList<Map.Entry<String, LongAdder>> lines = new ArrayList<Map.Entry<String, LongAdder>>(outcomes.entrySet());
+				lines.sort((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()));
+				long counted = 0, notCounted = 0;
+				for(Map.Entry<String, LongAdder> e:lines)
+				{
+					if(e.getKey().startsWith("[COUNTED]")) counted += e.getValue().sum();
+					else notCounted += e.getValue().sum();
+				}
+				this.log.write("\nOutcomes of the reads overlapping the barcodes\n");
+				this.log.write(counted + "\t[COUNTED]\n");
+				this.log.write(notCounted + "\t[NOT COUNTED]\n");
+				this.log.write("\nReads by barcode combination\n");
+				for(Map.Entry<String, LongAdder> e:lines) this.log.write(e.getValue().sum() + "\t" + e.getKey());
+				if(dropped.sum() > 0) this.log.write("\n" + dropped.sum() + " sampled lines were not written (queue full)\n");
+				this.log.close();
 			}
 			catch(IOException ioe)
 			{
-				new ErrorMessage(ioe.getMessage());
+				throw new CounterException(ioe.getMessage(), ioe);
+			}
+			catch(InterruptedException ie)
+			{
+				throw new CounterException(ie.getMessage(), ie);
 			}
 		}
 	}
-	
-	public static void close()
+
+	/**
+	 * Stops the background thread and closes the file, without the counts (failed run)
+	 */
+	public void abort()
 	{
-		if(Logger.log != null)
+		if(this.log != null)
 		{
+			closed = true;
+			queue.clear();
 			try
 			{
-				Logger.log.close();
+				writer.join();
+				this.log.close();
 			}
-			catch(IOException ioe)
+			catch(IOException | InterruptedException e)
 			{
-				new ErrorMessage(ioe.getMessage());
+				// The run already failed
 			}
 		}
 	}
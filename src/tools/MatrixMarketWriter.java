@@ -0,0 +1,80 @@
+package tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+
+import model.Barcode;
+import model.CounterException;
+import model.Parameters;
+import model.SparseCountMatrix;
+
+/**
+ * Writes a sparse TF x cell matrix in the 10x layout (gzipped matrix.mtx, barcodes.tsv and features.tsv), as read by Seurat::Read10X or scanpy.read_10x_mtx
+ */
+public class MatrixMarketWriter
+{
+	/**
+	 * @param folder output folder (created if needed)
+	 * @param tfs the rows of the matrix
+	 * @param cells the columns of the matrix, in the order of their index in the SparseCountMatrix
+	 * @param pool threads compressing the files (shared, not shut down)
+	 * @param nbThreads number of threads of the pool
+	 */
+	public static void write(String folder, SparseCountMatrix matrix, ArrayList<Barcode> tfs, Collection<String> cells, ExecutorService pool, int nbThreads)
+	{
+		new File(folder).mkdirs();
+		try
+		{
+			try(BufferedWriter features = open(folder + "features.tsv.gz", pool, nbThreads))
+			{
+				for(Barcode b:tfs) features.write(b.id + "\t" + b.name + "\tGene Expression\n"); // Feature type expected by scanpy.read_10x_mtx (gex_only)
+			}
+
+			try(BufferedWriter barcodes = open(folder + "barcodes.tsv.gz", pool, nbThreads))
+			{
+				for(String bc:cells) barcodes.write(bc + "\n");
+			}
+
+			// Values of the non-empty entries, column by column
+			long[] keys = matrix.getSortedKeys();
+			int[] values = new int[keys.length];
+			int nnz = 0;
+			for(int i = 0; i < keys.length; i++)
+			{
+				values[i] = matrix.getCount(keys[i]);
+				if(values[i] != 0) nnz++;
+			}
+
+			try(BufferedWriter mtx = open(folder + "matrix.mtx.gz", pool, nbThreads))
+			{
+				mtx.write("%%MatrixMarket matrix coordinate integer general\n");
+				mtx.write("%metadata_json: {\"software_version\": \"TFseqTools-" + Parameters.currentVersion + "\", \"format_version\": 2}\n");
+				mtx.write(tfs.size() + " " + cells.size() + " " + nnz + "\n");
+				StringBuilder line = new StringBuilder();
+				for(int i = 0; i < keys.length; i++)
+				{
+					if(values[i] == 0) continue;
+					line.setLength(0);
+					line.append(SparseCountMatrix.getTF(keys[i]) + 1).append(' ').append(SparseCountMatrix.getCell(keys[i]) + 1).append(' ').append(values[i]).append('\n');
+					mtx.append(line);
+				}
+			}
+		}
+		catch(IOException ioe)
+		{
+			throw new CounterException(ioe.getMessage(), ioe);
+		}
+	}
+
+	private static BufferedWriter open(String path, ExecutorService pool, int nbThreads) throws IOException
+	{
+		return new BufferedWriter(new OutputStreamWriter(new ParallelGZIPOutputStream(new FileOutputStream(path), pool, nbThreads), StandardCharsets.US_ASCII), 1 << 16);
+	}
+}
@@ -0,0 +1,188 @@
+package tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import model.CounterException;
+
+
+/**
+ * Time, CPU, records, bytes and allocation of each stage of one run, written in metrics.json.
+ * A stage is measured on the threads that work on it (reading thread, workers), and the values of all its threads are summed: for the stages run by several threads, the time is the busy time of the threads, not the elapsed time.
+ * CPU time and allocation come from the JVM (0 if it cannot measure them). When several stages are done record by record on the same thread (filter, extraction, matching),
+ * the CPU time and allocation of the batch are split between them in proportion of their time.
+ */
+public class Metrics
+{
+	public static final String BARCODES = "barcodes";
+	public static final String DECODE = "decode";
+	public static final String FILTER = "filter";
+	public static final String EXTRACTION = "extraction";
+	public static final String MATCHING = "matching";
+	public static final String JOIN = "join";
+	public static final String UMI_CORRECTION = "umiCorrection";
+	public static final String MATRIX_WRITE = "matrixWrite";
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final boolean cpuSupported = threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+	private static final com.sun.management.ThreadMXBean allocation = allocationBean();
+
+	private final LinkedHashMap<String, Stage> stages = new LinkedHashMap<String, Stage>();
+	private final long start = System.nanoTime();
+
+	public Metrics()
+	{
+		for(String name:new String[] {BARCODES, DECODE, FILTER, EXTRACTION, MATCHING, JOIN, UMI_CORRECTION, MATRIX_WRITE}) stages.put(name, new Stage(name));
+	}
+
+	/**
+	 * Totals of one stage, over all the threads working on it
+	 */
+	public static class Stage
+	{
+		public final String name;
+		private long wall = 0; // ns
+		private long cpu = 0; // ns
+		private long allocated = 0;
+		private long records = 0;
+		private long bytes = 0;
+
+		Stage(String name)
+		{
+			this.name = name;
+		}
+
+		public synchronized void add(long wall, long cpu, long allocated, long records, long bytes)
+		{
+			this.wall += wall;
+			this.cpu += cpu;
+			this.allocated += allocated;
+			this.records += records;
+			this.bytes += bytes;
+		}
+
+		/**
+		 * Adds the time, CPU and allocation of the current thread since the timer was started
+		 */
+		public void stop(Timer t, long records, long bytes)
+		{
+			add(System.nanoTime() - t.wall, cpuTime() - t.cpu, allocatedBytes() - t.allocated, records, bytes);
+		}
+	}
+
+	/**
+	 * Snapshot of the current thread
+	 */
+	public static class Timer
+	{
+		final long wall = System.nanoTime();
+		final long cpu = cpuTime();
+		final long allocated = allocatedBytes();
+	}
+
+	public static Timer start()
+	{
+		return new Timer();
+	}
+
+	public Stage get(String name)
+	{
+		return stages.get(name);
+	}
+
+	/**
+	 * Adds stages done record by record on the current thread since the timer was started: their times were measured, the CPU time and allocation are split in proportion
+	 */
+	public void split(Timer t, Stage[] parts, long[] walls, long[] records)
+	{
+		long cpu = cpuTime() - t.cpu;
+		long allocated = allocatedBytes() - t.allocated;
+		long total = 0;
+		for(long w:walls) total += w;
+		for(int i = 0; i < parts.length; i++)
+		{
+			double share = total == 0 ? 1.0 / parts.length : walls[i] / (double)total;
+			parts[i].add(walls[i], Math.round(cpu * share), Math.round(allocated * share), records[i], 0);
+		}
+	}
+
+	/**
+	 * Writes the stages and the run statistics in a JSON file
+	 * @param statistics run statistics (values are numbers or strings), in this order
+	 */
+	public void write(File json, LinkedHashMap<String, Object> statistics)
+	{
+		long elapsed = System.nanoTime() - start;
+		try(BufferedWriter bw = new BufferedWriter(new FileWriter(json)))
+		{
+			bw.write("{\n");
+			bw.write("  \"elapsedMs\": " + elapsed / 1000000 + ",\n");
+			bw.write("  \"cpuTimeMeasured\": " + cpuSupported + ",\n");
+			bw.write("  \"allocationMeasured\": " + (allocation != null) + ",\n");
+			bw.write("  \"statistics\": {");
+			ArrayList<String> fields = new ArrayList<String>();
+			for(Map.Entry<String, Object> e:statistics.entrySet()) fields.add("\n    \"" + e.getKey() + "\": " + toJSON(e.getValue()));
+			bw.write(String.join(",", fields) + "\n  },\n");
+			bw.write("  \"stages\": [");
+			fields.clear();
+			for(Stage s:stages.values())
+			{
+				synchronized(s)
+				{
+					double seconds = s.wall / 1e9;
+					fields.add("\n    {\"name\": \"" + s.name + "\", \"wallMs\": " + s.wall / 1000000 + ", \"cpuMs\": " + s.cpu / 1000000 + ", \"records\": " + s.records
+							+ ", \"recordsPerSecond\": " + (seconds > 0 ? Math.round(s.records / seconds) : 0) + ", \"bytes\": " + s.bytes + ", \"allocatedBytes\": " + s.allocated + "}");
+				}
+			}
+			bw.write(String.join(",", fields) + "\n  ]\n}\n");
+		}
+		catch(IOException ioe)
+		{
+			throw new CounterException(ioe.getMessage(), ioe);
+		}
+	}
+
+	private static String toJSON(Object value)
+	{
+		if(value == null) return "null";
+		if(value instanceof Number || value instanceof Boolean) return value.toString();
+		return "\"" + value.toString().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static long cpuTime()
+	{
+		return cpuSupported ? threads.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long allocatedBytes()
+	{
+		return allocation != null ? allocation.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	/**
+	 * HotSpot extension measuring the allocation of each thread, or null if not available
+	 */
+	private static com.sun.management.ThreadMXBean allocationBean()
+	{
+		try
+		{
+			if(threads instanceof com.sun.management.ThreadMXBean)
+			{
+				com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)threads;
+				if(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) return bean;
+			}
+		}
+		catch(NoClassDefFoundError e)
+		{
+			// Not a HotSpot JVM
+		}
+		return null;
+	}
+}
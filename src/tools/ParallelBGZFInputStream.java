@@ -0,0 +1,170 @@
+package tools;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompressed view of a BGZF stream (BAM, bgzipped FASTQ, ...), where the blocks are read ahead and inflated on a pool of threads.
+ * Blocks are handed back in the order of the file, so the byte stream is the same as the one of htsjdk's BlockCompressedInputStream.
+ */
+public class ParallelBGZFInputStream extends InputStream
+{
+	private static final int BGZF_HEADER_SIZE = 12; // Until XLEN included
+	private static final int BLOCKS_PER_THREAD = 4; // Read-ahead
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	private final InputStream in;
+	private final ExecutorService pool;
+	private final int readAhead;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private final byte[] header = new byte[BGZF_HEADER_SIZE];
+	private byte[] current = new byte[0];
+	private int position = 0;
+	private boolean eof = false;
+
+	public ParallelBGZFInputStream(InputStream in, int nbThreads)
+	{
+		this.in = in;
+		this.pool = Executors.newFixedThreadPool(nbThreads);
+		this.readAhead = nbThreads * BLOCKS_PER_THREAD;
+	}
+
+	/**
+	 * Checks the magic of the first block (gzip with a 'BC' extra subfield). The stream is not consumed.
+	 */
+	public static boolean isBGZF(byte[] start, int length)
+	{
+		return length >= 16 && (start[0] & 0xFF) == 31 && (start[1] & 0xFF) == 139 && start[2] == 8 && (start[3] & 4) != 0 && start[12] == 'B' && start[13] == 'C';
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(!ensureData()) return -1;
+		return current[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len == 0) return 0;
+		if(!ensureData()) return -1;
+		int n = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	private boolean ensureData() throws IOException
+	{
+		while(position == current.length)
+		{
+			fill();
+			if(pending.isEmpty()) return false;
+			try
+			{
+				current = pending.poll().get();
+				position = 0;
+			}
+			catch(ExecutionException ee)
+			{
+				throw new IOException(ee.getCause().getMessage(), ee.getCause());
+			}
+			catch(InterruptedException ie)
+			{
+				throw new IOException(ie.getMessage(), ie);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the next compressed blocks and submits them for inflation, up to the read-ahead limit
+	 */
+	private void fill() throws IOException
+	{
+		while(!eof && pending.size() < readAhead)
+		{
+			final byte[] block = readBlock();
+			if(block == null) eof = true;
+			else pending.add(pool.submit(() -> inflate(block)));
+		}
+	}
+
+	/**
+	 * @return the block, without its header (i.e. compressed data + CRC32 + ISIZE), or null at the end of the stream
+	 */
+	private byte[] readBlock() throws IOException
+	{
+		int n = readFully(header, 0, BGZF_HEADER_SIZE);
+		if(n == 0) return null;
+		if(n < BGZF_HEADER_SIZE || (header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || header[2] != 8 || (header[3] & 4) == 0) throw new IOException("Invalid BGZF block header");
+		int xlen = (header[10] & 0xFF) | ((header[11] & 0xFF) << 8);
+		byte[] extra = new byte[xlen];
+		if(readFully(extra, 0, xlen) < xlen) throw new EOFException("Truncated BGZF block");
+		int bsize = -1;
+		for(int i = 0; i + 4 <= xlen; i += 4 + ((extra[i + 2] & 0xFF) | ((extra[i + 3] & 0xFF) << 8)))
+		{
+			if(extra[i] == 'B' && extra[i + 1] == 'C') bsize = (extra[i + 4] & 0xFF) | ((extra[i + 5] & 0xFF) << 8);
+		}
+		if(bsize == -1) throw new IOException("Not a BGZF block (no BC subfield)");
+		byte[] block = new byte[bsize + 1 - BGZF_HEADER_SIZE - xlen];
+		if(readFully(block, 0, block.length) < block.length) throw new EOFException("Truncated BGZF block");
+		return block;
+	}
+
+	private static byte[] inflate(byte[] block) throws IOException
+	{
+		int l = block.length;
+		int isize = (block[l - 4] & 0xFF) | ((block[l - 3] & 0xFF) << 8) | ((block[l - 2] & 0xFF) << 16) | ((block[l - 1] & 0xFF) << 24);
+		byte[] result = new byte[isize];
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(block, 0, l - 8);
+		try
+		{
+			int n = 0;
+			while(n < isize && !inflater.finished())
+			{
+				int r = inflater.inflate(result, n, isize - n);
+				if(r == 0 && inflater.needsInput()) break;
+				n += r;
+			}
+			if(n != isize) throw new IOException("Corrupted BGZF block: " + n + " bytes inflated instead of " + isize);
+		}
+		catch(DataFormatException dfe)
+		{
+			throw new IOException("Corrupted BGZF block: " + dfe.getMessage(), dfe);
+		}
+		return result;
+	}
+
+	private int readFully(byte[] b, int off, int len) throws IOException
+	{
+		int n = 0;
+		while(n < len)
+		{
+			int r = in.read(b, off + n, len - n);
+			if(r == -1) break;
+			n += r;
+		}
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		for(Future<byte[]> f:pending) f.cancel(true);
+		pending.clear();
+		pool.shutdownNow();
+		in.close();
+	}
+}
@@ -0,0 +1,161 @@
+package tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compression on a pool of threads: the data is cut in chunks that are compressed independently as gzip members, and written in order.
+ * The output is a multi-member gzip file (as BGZF or pigz --independent), read as a single stream by gzip, zlib, R and Python.
+ */
+public class ParallelGZIPOutputStream extends OutputStream
+{
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final int CHUNKS_PER_THREAD = 2; // Compressed ahead of the writes
+	private static final byte[] GZIP_HEADER = {31, (byte)139, 8, 0, 0, 0, 0, 0, 0, (byte)255}; // No name, no time, unknown OS
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+	private final OutputStream out;
+	private final ExecutorService pool;
+	private final boolean ownPool; // Shut down on close
+	private final int maxPending;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private byte[] chunk = new byte[CHUNK_SIZE];
+	private int position = 0;
+	private int nbMembers = 0;
+	private boolean closed = false;
+
+	public ParallelGZIPOutputStream(OutputStream out, int nbThreads)
+	{
+		this(out, Executors.newFixedThreadPool(nbThreads), nbThreads, true);
+	}
+
+	/**
+	 * @param pool shared pool compressing the chunks (not shut down on close)
+	 * @param nbThreads threads of the pool, for the number of chunks compressed ahead
+	 */
+	public ParallelGZIPOutputStream(OutputStream out, ExecutorService pool, int nbThreads)
+	{
+		this(out, pool, nbThreads, false);
+	}
+
+	private ParallelGZIPOutputStream(OutputStream out, ExecutorService pool, int nbThreads, boolean ownPool)
+	{
+		this.out = out;
+		this.pool = pool;
+		this.ownPool = ownPool;
+		this.maxPending = nbThreads * CHUNKS_PER_THREAD;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		if(position == CHUNK_SIZE) submit();
+		chunk[position++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			if(position == CHUNK_SIZE) submit();
+			int n = Math.min(len, CHUNK_SIZE - position);
+			System.arraycopy(b, off, chunk, position, n);
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Submits the current chunk for compression, and writes the chunks already compressed if too many are pending
+	 */
+	private void submit() throws IOException
+	{
+		final byte[] data = chunk;
+		final int length = position;
+		pending.add(pool.submit(() -> compress(data, length)));
+		nbMembers++;
+		chunk = new byte[CHUNK_SIZE];
+		position = 0;
+		while(pending.size() > maxPending) writeNext();
+	}
+
+	private void writeNext() throws IOException
+	{
+		try
+		{
+			out.write(pending.poll().get());
+		}
+		catch(ExecutionException ee)
+		{
+			throw new IOException(ee.getCause().getMessage(), ee.getCause());
+		}
+		catch(InterruptedException ie)
+		{
+			throw new IOException(ie.getMessage(), ie);
+		}
+	}
+
+	/**
+	 * @return the chunk as a complete gzip member
+	 */
+	private static byte[] compress(byte[] data, int length)
+	{
+		ByteArrayOutputStream member = new ByteArrayOutputStream(length / 3 + 64);
+		member.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		byte[] buffer = new byte[1 << 16];
+		while(!deflater.finished())
+		{
+			int n = deflater.deflate(buffer);
+			member.write(buffer, 0, n);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		writeInt(member, (int)crc.getValue());
+		writeInt(member, length);
+		return member.toByteArray();
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) // Little-endian
+	{
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+		out.write((value >>> 16) & 0xFF);
+		out.write((value >>> 24) & 0xFF);
+	}
+
+	/**
+	 * Writes the remaining chunks. The file and the pool (if owned) are released even if the writes fail
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if(closed) return;
+		closed = true;
+		try
+		{
+			if(position > 0 || nbMembers == 0) submit(); // At least one member, even if empty
+			while(!pending.isEmpty()) writeNext();
+		}
+		finally
+		{
+			for(Future<byte[]> f:pending) f.cancel(true);
+			pending.clear();
+			if(ownPool) pool.shutdownNow();
+			out.close();
+		}
+	}
+}
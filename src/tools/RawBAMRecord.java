@@ -0,0 +1,197 @@
+package tools;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes, field by field, the bytes of one BAM record (as stored in the file, without its block_size), so that a record rejected on its flag or mapping quality costs no decoding at all.
+ * The CIGAR and bases are decoded into buffers reused from one record to the next (one instance per thread), and no SAMRecord is created.
+ * Only the fields used by the Counter are read: flag, mapping quality, position, read name, CIGAR, bases, qualities, and the string tags.
+ */
+public class RawBAMRecord
+{
+	// Flags
+	public static final int UNMAPPED = 0x4;
+	public static final int SECONDARY = 0x100;
+	public static final int SUPPLEMENTARY = 0x800;
+
+	private static final byte[] BASES = "=ACMGRSVTWYHKDBN".getBytes(StandardCharsets.US_ASCII); // 4-bit code => base
+	private static final int FIXED_SIZE = 32; // refID to tlen
+
+	private byte[] data;
+	private int offset;
+	private int end;
+	private byte[] bases = new byte[256];
+
+	/**
+	 * Points the decoder to the record starting at this offset (nothing is decoded yet)
+	 */
+	public void wrap(byte[] data, int offset, int length)
+	{
+		this.data = data;
+		this.offset = offset;
+		this.end = offset + length;
+	}
+
+	public int getFlag()
+	{
+		return readUShort(offset + 14);
+	}
+
+	public int getMappingQuality()
+	{
+		return data[offset + 9] & 0xFF;
+	}
+
+	/**
+	 * @return 1-based position (0 if unmapped)
+	 */
+	public int getAlignmentStart()
+	{
+		return readInt(offset + 4) + 1;
+	}
+
+	public int getReadLength()
+	{
+		return readInt(offset + 16);
+	}
+
+	public String getReadName()
+	{
+		int length = (data[offset + 8] & 0xFF) - 1; // Without the NUL
+		return new String(data, offset + FIXED_SIZE, length, StandardCharsets.ISO_8859_1);
+	}
+
+	private int cigarOffset()
+	{
+		return offset + FIXED_SIZE + (data[offset + 8] & 0xFF);
+	}
+
+	private int nbCigar()
+	{
+		return readUShort(offset + 12);
+	}
+
+	private int sequenceOffset()
+	{
+		return cigarOffset() + 4 * nbCigar();
+	}
+
+	/**
+	 * @return offset of the phred qualities in the array of the record
+	 */
+	public int getQualityOffset()
+	{
+		return sequenceOffset() + (getReadLength() + 1) / 2;
+	}
+
+	public byte[] getData()
+	{
+		return data;
+	}
+
+	/**
+	 * @return false if the qualities are missing ('*')
+	 */
+	public boolean hasQualities()
+	{
+		return getReadLength() > 0 && data[getQualityOffset()] != (byte)0xFF;
+	}
+
+	/**
+	 * @return mean phred quality of the whole read, NaN if the qualities are missing
+	 */
+	public float meanQuality()
+	{
+		if(!hasQualities()) return Float.NaN;
+		int q = getQualityOffset();
+		int length = getReadLength();
+		long sum = 0;
+		for(int i = 0; i < length; i++) sum += data[q + i];
+		return sum / (float)length;
+	}
+
+	/**
+	 * Sets the CIGAR of the extractor (the BAM binary form is the one of WindowExtractor)
+	 */
+	public void decodeCigar(WindowExtractor extractor)
+	{
+		extractor.resetCigar();
+		int c = cigarOffset();
+		for(int i = 0; i < nbCigar(); i++)
+		{
+			int op = readInt(c + 4 * i);
+			extractor.addCigarElement(op & 0xF, op >>> 4);
+		}
+	}
+
+	/**
+	 * Unpacks the 4-bit bases
+	 * @return reused buffer, holding getReadLength() bases
+	 */
+	public byte[] decodeBases()
+	{
+		int length = getReadLength();
+		if(bases.length < length) bases = new byte[Math.max(length, 2 * bases.length)];
+		int s = sequenceOffset();
+		for(int i = 0; i < length; i++)
+		{
+			int packed = data[s + i / 2];
+			bases[i] = BASES[(i & 1) == 0 ? (packed >> 4) & 0xF : packed & 0xF];
+		}
+		return bases;
+	}
+
+	/**
+	 * @return the value of a tag of type Z, A, or integer, or null if the record does not have it (other types are not read)
+	 */
+	public String getTag(String tag)
+	{
+		byte t0 = (byte)tag.charAt(0), t1 = (byte)tag.charAt(1);
+		int p = getQualityOffset() + getReadLength();
+		while(p + 3 <= end)
+		{
+			boolean found = data[p] == t0 && data[p + 1] == t1;
+			byte type = data[p + 2];
+			p += 3;
+			int size;
+			switch(type)
+			{
+				case 'A': if(found) return String.valueOf((char)(data[p] & 0xFF)); size = 1; break;
+				case 'c': if(found) return String.valueOf(data[p]); size = 1; break;
+				case 'C': if(found) return String.valueOf(data[p] & 0xFF); size = 1; break;
+				case 's': if(found) return String.valueOf((short)readUShort(p)); size = 2; break;
+				case 'S': if(found) return String.valueOf(readUShort(p)); size = 2; break;
+				case 'i': if(found) return String.valueOf(readInt(p)); size = 4; break;
+				case 'I': if(found) return String.valueOf(readInt(p) & 0xFFFFFFFFL); size = 4; break;
+				case 'f': if(found) return String.valueOf(Float.intBitsToFloat(readInt(p))); size = 4; break;
+				case 'Z':
+				case 'H':
+					int zero = p;
+					while(zero < end && data[zero] != 0) zero++;
+					if(found) return type == 'Z' ? new String(data, p, zero - p, StandardCharsets.ISO_8859_1) : null;
+					size = zero - p + 1;
+					break;
+				case 'B':
+					if(found) return null;
+					byte subtype = data[p];
+					int width = subtype == 'c' || subtype == 'C' ? 1 : subtype == 's' || subtype == 'S' ? 2 : 4;
+					size = 5 + width * readInt(p + 1);
+					break;
+				default:
+					return null; // Corrupted record
+			}
+			p += size;
+		}
+		return null;
+	}
+
+	private int readInt(int p)
+	{
+		return (data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8 | (data[p + 2] & 0xFF) << 16 | (data[p + 3] & 0xFF) << 24;
+	}
+
+	private int readUShort(int p)
+	{
+		return (data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8;
+	}
+}
@@ -0,0 +1,149 @@
+package tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Stream reading its source on a background thread, in chunks queued ahead of the consumer.
+ * Used on a GZIPInputStream, so that the inflation of plain (non-BGZF) gzip files runs in parallel to the parsing of the text.
+ */
+public class ReadAheadInputStream extends InputStream
+{
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final int NB_CHUNKS = 4; // Read-ahead
+	private static final byte[] END = new byte[0];
+
+	private final InputStream in;
+	private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(NB_CHUNKS);
+	private final Thread reader;
+	private volatile IOException error = null;
+	private volatile boolean closed = false;
+	private byte[] current = new byte[0];
+	private int position = 0;
+	private int limit = 0;
+	private boolean eof = false;
+
+	public ReadAheadInputStream(InputStream in)
+	{
+		this.in = in;
+		this.reader = new Thread(this::readAll, "read-ahead");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	/**
+	 * Background thread: fills the queue with chunks of the source, then END. The source is only used (and closed) by this thread.
+	 */
+	private void readAll()
+	{
+		try
+		{
+			while(!closed)
+			{
+				byte[] chunk = new byte[CHUNK_SIZE];
+				int n = 0;
+				while(n < CHUNK_SIZE)
+				{
+					int r = in.read(chunk, n, CHUNK_SIZE - n);
+					if(r == -1) break;
+					n += r;
+				}
+				if(n > 0) queue.put(n == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, n));
+				if(n < CHUNK_SIZE) break;
+			}
+		}
+		catch(IOException ioe)
+		{
+			if(!closed) error = ioe;
+		}
+		catch(InterruptedException ie)
+		{
+			// Closed
+		}
+		finally
+		{
+			try
+			{
+				in.close();
+			}
+			catch(IOException ioe)
+			{
+				if(error == null && !closed) error = ioe;
+			}
+		}
+		if(closed) return;
+		try
+		{
+			queue.put(END);
+		}
+		catch(InterruptedException ie)
+		{
+			// Closed
+		}
+	}
+
+	private boolean ensureData() throws IOException
+	{
+		while(position == limit)
+		{
+			if(eof) return false;
+			try
+			{
+				current = queue.take();
+			}
+			catch(InterruptedException ie)
+			{
+				throw new IOException(ie.getMessage(), ie);
+			}
+			position = 0;
+			limit = current.length;
+			if(current == END)
+			{
+				eof = true;
+				if(error != null) throw error;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(!ensureData()) return -1;
+		return current[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len == 0) return 0;
+		if(!ensureData()) return -1;
+		int n = Math.min(len, limit - position);
+		System.arraycopy(current, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	/**
+	 * Stops the background thread, and waits for it to close the source (it may be inside a read of the source)
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		closed = true;
+		reader.interrupt();
+		queue.clear(); // Unblocks a pending put
+		try
+		{
+			reader.join();
+		}
+		catch(InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException(ie.getMessage(), ie);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package tools;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes read names into long keys.
+ * Standard Illumina names (instrument:run:flowcell:lane:tile:x:y) sharing the same instrument:run:flowcell prefix are packed without loss: lane (4 bits), tile (17 bits), x (21 bits), y (21 bits).
+ * Any other name is hashed (highest bit set), and must then be verified against the full name (see ReadNameTable).
+ * The prefix is taken from the first Illumina name that is encoded, so the same codec must be used for both R1 and R2 reads.
+ */
+public class ReadNameCodec
+{
+	private static final long HASHED = 0x8000000000000000L;
+	private static final int[] BITS = {4, 17, 21, 21}; // lane, tile, x, y
+
+	private volatile byte[] prefix = null; // instrument:run:flowcell: (including the last ':')
+
+	public static boolean isHashed(long key)
+	{
+		return key < 0;
+	}
+
+	public long encode(String name)
+	{
+		byte[] bytes = new byte[name.length()];
+		for(int i = 0; i < bytes.length; i++) bytes[i] = (byte)name.charAt(i);
+		return encode(bytes, 0, bytes.length);
+	}
+
+	public long encode(byte[] name, int offset, int length)
+	{
+		long key = pack(name, offset, length);
+		if(key != -1) return key;
+		return HASHED | (hash(name, offset, length) & ~HASHED);
+	}
+
+	/**
+	 * @return the read name of a packed key (for messages), or null for a hashed key
+	 */
+	public String decode(long key)
+	{
+		if(isHashed(key) || prefix == null) return null;
+		long[] values = new long[BITS.length];
+		for(int field = BITS.length - 1; field >= 0; field--)
+		{
+			values[field] = key & ((1L << BITS[field]) - 1);
+			key >>>= BITS[field];
+		}
+		StringBuilder sb = new StringBuilder(new String(prefix, StandardCharsets.ISO_8859_1));
+		for(int field = 0; field < BITS.length; field++) sb.append(field == 0 ? "" : ":").append(values[field]);
+		return sb.toString();
+	}
+
+	/**
+	 * @return the packed key, or -1 if the name cannot be packed
+	 */
+	private long pack(byte[] name, int offset, int length)
+	{
+		// Find the prefix (3 first fields)
+		int end = offset + length;
+		int p = offset;
+		for(int field = 0; field < 3; field++)
+		{
+			while(p < end && name[p] != ':') p++;
+			if(p == end) return -1;
+			p++;
+		}
+		int prefixLength = p - offset;
+
+		// Numeric fields
+		long key = 0;
+		for(int field = 0; field < BITS.length; field++)
+		{
+			int start = p;
+			long value = 0;
+			while(p < end && name[p] != ':')
+			{
+				int digit = name[p] - '0';
+				if(digit < 0 || digit > 9) return -1;
+				value = value * 10 + digit;
+				if(value >= (1L << BITS[field])) return -1;
+				p++;
+			}
+			if(p == start || (name[start] == '0' && p - start > 1)) return -1; // Empty, or leading zeros (would not be decoded to the same name)
+			if(field < BITS.length - 1)
+			{
+				if(p == end) return -1;
+				p++; // ':'
+			}
+			key = (key << BITS[field]) | value;
+		}
+		if(p != end) return -1;
+		
+		// Same prefix as the other packed names
+		if(prefix == null) setPrefix(name, offset, prefixLength);
+		byte[] pref = prefix;
+		if(prefixLength != pref.length) return -1;
+		for(int i = 0; i < prefixLength; i++) if(name[offset + i] != pref[i]) return -1;
+		return key;
+	}
+
+	private synchronized void setPrefix(byte[] name, int offset, int length)
+	{
+		if(prefix != null) return;
+		byte[] pref = new byte[length];
+		System.arraycopy(name, offset, pref, 0, length);
+		prefix = pref;
+	}
+
+	private static long hash(byte[] name, int offset, int length)
+	{
+		long h = 0xcbf29ce484222325L; // FNV-1a
+		for(int i = offset; i < offset + length; i++)
+		{
+			h ^= name[i] & 0xFF;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33; // Final mix
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,138 @@
+package tools;
+
+import java.util.Arrays;
+
+import model.CounterException;
+
+/**
+ * Map from read name to TF index (in the list of TF barcodes), with open addressing on the keys of a ReadNameCodec.
+ * Only hashed keys (non-Illumina names) also keep the name bytes, for verifying collisions.
+ */
+public class ReadNameTable
+{
+	private static final short EMPTY = -1;
+	private static final float LOAD_FACTOR = 0.7f;
+
+	private final ReadNameCodec codec = new ReadNameCodec();
+	private long[] keys;
+	private short[] values;
+	private byte[][] names = null; // Only allocated if there are hashed keys
+	private int mask;
+	private int size = 0;
+
+	public ReadNameTable()
+	{
+		allocate(1 << 16);
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new long[capacity];
+		values = new short[capacity];
+		Arrays.fill(values, EMPTY);
+		if(names != null) names = new byte[capacity][];
+		mask = capacity - 1;
+	}
+
+	public ReadNameCodec getCodec()
+	{
+		return codec;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean containsKey(String name)
+	{
+		return get(name) != EMPTY;
+	}
+
+	/**
+	 * @return the TF index, or -1 if the read is not in the table
+	 */
+	public int get(String name)
+	{
+		byte[] bytes = toBytes(name);
+		return get(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @return the TF index, or -1 if the read is not in the table
+	 */
+	public int get(byte[] name, int offset, int length)
+	{
+		long key = codec.encode(name, offset, length);
+		int i = find(key, name, offset, length);
+		return values[i];
+	}
+
+	public void put(String name, int tfIndex)
+	{
+		if(tfIndex < 0 || tfIndex > Short.MAX_VALUE) throw new CounterException("Too many TF barcodes (max " + Short.MAX_VALUE + ")");
+		byte[] bytes = toBytes(name);
+		long key = codec.encode(bytes, 0, bytes.length);
+		if(ReadNameCodec.isHashed(key) && names == null) names = new byte[keys.length][];
+		int i = find(key, bytes, 0, bytes.length);
+		if(values[i] == EMPTY)
+		{
+			keys[i] = key;
+			if(ReadNameCodec.isHashed(key)) names[i] = bytes;
+			size++;
+		}
+		values[i] = (short)tfIndex;
+		if(size > keys.length * LOAD_FACTOR) resize();
+	}
+
+	/**
+	 * @return the slot of this key/name, or the empty slot where it should be inserted
+	 */
+	private int find(long key, byte[] name, int offset, int length)
+	{
+		int i = hash(key) & mask;
+		while(values[i] != EMPTY)
+		{
+			if(keys[i] == key && (!ReadNameCodec.isHashed(key) || sameName(names[i], name, offset, length))) return i;
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void resize()
+	{
+		long[] oldKeys = keys;
+		short[] oldValues = values;
+		byte[][] oldNames = names;
+		allocate(keys.length * 2);
+		for(int j = 0; j < oldKeys.length; j++)
+		{
+			if(oldValues[j] == EMPTY) continue;
+			int i = hash(oldKeys[j]) & mask;
+			while(values[i] != EMPTY) i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+			if(oldNames != null) names[i] = oldNames[j];
+		}
+	}
+
+	private static boolean sameName(byte[] stored, byte[] name, int offset, int length)
+	{
+		if(stored.length != length) return false;
+		for(int i = 0; i < length; i++) if(stored[i] != name[offset + i]) return false;
+		return true;
+	}
+
+	private static byte[] toBytes(String name)
+	{
+		byte[] bytes = new byte[name.length()];
+		for(int i = 0; i < bytes.length; i++) bytes[i] = (byte)name.charAt(i);
+		return bytes;
+	}
+
+	private static int hash(long key)
+	{
+		key *= 0x9E3779B97F4A7C15L;
+		return (int)(key ^ (key >>> 32));
+	}
+}
@@ -0,0 +1,470 @@
+package tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.function.BiConsumer;
+
+import model.Barcode;
+import model.CountAggregator;
+import model.CounterConfig;
+import model.CounterException;
+
+/**
+ * Join of the R2 TF reads with the R1 FastQ file within a memory budget ('--memory'), for libraries whose read names do not fit in the heap (ReadNameTable).
+ * The (read name key, TF index) pairs of the R2 pass are buffered, sorted, and written as sorted runs on disk when the buffer is full. If they all fit in the buffer, the R1 reads are looked up in the sorted buffer.
+ * Otherwise the R1 reads (key, sequence, and index in the R1 file) are also written as sorted runs, and both sides are joined by a k-way merge of their runs.
+ * The joined reads are then aggregated in key order, with their index in the R1 file as rank, so the matrices are the ones of the hash join.
+ * Keys come from one ReadNameCodec for both sides. Hashed keys (non-Illumina names) are stored with their name, for verifying collisions.
+ */
+public class SortMergeJoin implements BiConsumer<String, Barcode>
+{
+	private static final int IO_BUFFER = 1 << 16;
+
+	private final CounterEngine engine;
+	private final CounterConfig config;
+	private final CountAggregator aggregator;
+	private final ReadNameCodec codec = new ReadNameCodec();
+	private final long budget; // Bytes
+	private Buffer r2 = null;
+	private final ArrayList<File> r2Runs = new ArrayList<File>();
+	private final ArrayList<File> r1Runs = new ArrayList<File>();
+	private File folder = null; // Of the runs
+	private long nbMappedReads = 0;
+	private long spilledBytes = 0;
+
+	/**
+	 * @param memoryBudget bytes used for buffering the records of one side
+	 */
+	public SortMergeJoin(CounterEngine engine, CountAggregator aggregator, long memoryBudget)
+	{
+		this.engine = engine;
+		this.config = engine.config;
+		this.aggregator = aggregator;
+		this.budget = memoryBudget;
+		this.r2 = new Buffer(2, budget);
+	}
+
+	/**
+	 * Receives the R2 reads passing the filters
+	 */
+	@Override
+	public void accept(String readName, Barcode bc)
+	{
+		if(bc == null) return;
+		nbMappedReads++;
+		byte[] name = readName.getBytes(StandardCharsets.ISO_8859_1);
+		long key = codec.encode(name, 0, name.length);
+		byte[] tf = {(byte)(bc.index >>> 8), (byte)bc.index};
+		if(!r2.add(key, tf, 0, ReadNameCodec.isHashed(key) ? name : null))
+		{
+			r2Runs.add(spill(r2, "R2"));
+			r2.add(key, tf, 0, ReadNameCodec.isHashed(key) ? name : null);
+		}
+	}
+
+	/**
+	 * Number of reads consistently mapping to TFs
+	 */
+	public long getNbMappedReads()
+	{
+		return nbMappedReads;
+	}
+
+	/**
+	 * To call once the R2 file is read: reads the R1 file and adds the joined reads to the aggregator
+	 */
+	public void finish()
+	{
+		Metrics.Timer timer = Metrics.start();
+		long start = System.currentTimeMillis();
+		config.out.println("\nReading reads barcodes/UMI from the R1 fastq file...");
+		FastqParser parser = Utils.parseFastq(config.inputFastQFileR1, config.nbInflateThreads);
+		long nbReadsR1 = 0;
+		if(r2Runs.isEmpty()) // All R2 reads fit in the buffer: R1 reads are looked up in it
+		{
+			r2.sort();
+			checkDuplicates(r2);
+			while(parser.next())
+			{
+				nbReadsR1++;
+				if(nbReadsR1 % config.chunkSize == 0) config.out.println(nbReadsR1 + " reads were processed from fastq file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+				Utils.checkR1Read(parser, config);
+				int tfIndex = r2.lookup(codec, parser.getBuffer(), parser.getNameOffset(), parser.getNameLength());
+				if(tfIndex != -1) Utils.addR1Read(parser, tfIndex, nbReadsR1 - 1, aggregator, config);
+			}
+			Utils.close(parser);
+		}
+		else
+		{
+			if(r2.size > 0) r2Runs.add(spill(r2, "R2"));
+			r2 = null;
+			Buffer r1 = new Buffer(config.lengthBarcode + 8, budget);
+			byte[] payload = new byte[config.lengthBarcode + 8]; // Sequence, then index in the R1 file
+			while(parser.next())
+			{
+				nbReadsR1++;
+				if(nbReadsR1 % config.chunkSize == 0) config.out.println(nbReadsR1 + " reads were processed from fastq file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+				Utils.checkR1Read(parser, config);
+				long key = codec.encode(parser.getBuffer(), parser.getNameOffset(), parser.getNameLength());
+				byte[] name = ReadNameCodec.isHashed(key) ? Arrays.copyOfRange(parser.getBuffer(), parser.getNameOffset(), parser.getNameOffset() + parser.getNameLength()) : null;
+				System.arraycopy(parser.getBuffer(), parser.getSequenceOffset(), payload, 0, config.lengthBarcode);
+				for(int b = 0; b < 8; b++) payload[config.lengthBarcode + b] = (byte)((nbReadsR1 - 1) >>> (56 - 8 * b));
+				if(!r1.add(key, payload, 0, name))
+				{
+					r1Runs.add(spill(r1, "R1"));
+					r1.add(key, payload, 0, name);
+				}
+			}
+			Utils.close(parser);
+			if(r1.size > 0) r1Runs.add(spill(r1, "R1"));
+			r1 = null;
+			config.out.println(r2Runs.size() + " R2 and " + r1Runs.size() + " R1 sorted runs (" + spilledBytes / 1024 / 1024 + " MB) were written in " + folder.getAbsolutePath() + ". Merging them...");
+			merge();
+			for(File f:r2Runs) f.delete();
+			for(File f:r1Runs) f.delete();
+			folder.delete();
+		}
+		engine.result.nbReadsR1 = nbReadsR1;
+		config.out.println(nbReadsR1 + " reads were processed from fastq file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+		engine.metrics.get(Metrics.JOIN).stop(timer, nbReadsR1, config.inputFastQFileR1.length() + spilledBytes);
+	}
+
+	/**
+	 * Joins the merged R2 runs with the merged R1 runs (both sorted by key)
+	 */
+	private void merge()
+	{
+		MergedRuns left = new MergedRuns(r2Runs, 2);
+		MergedRuns right = new MergedRuns(r1Runs, config.lengthBarcode + 8);
+		ArrayList<byte[]> names = new ArrayList<byte[]>(); // R2 reads of the current key
+		ArrayList<Integer> tfs = new ArrayList<Integer>();
+		while(left.current != null)
+		{
+			// Group of R2 reads with the same key
+			long key = left.current.key;
+			names.clear();
+			tfs.clear();
+			while(left.current != null && left.current.key == key)
+			{
+				for(byte[] n:names) if(n == null || Arrays.equals(n, left.current.name)) duplicate(key, left.current.name);
+				names.add(left.current.name);
+				tfs.add(((left.current.payload[0] & 0xFF) << 8) | (left.current.payload[1] & 0xFF));
+				left.advance();
+			}
+
+			// R1 reads with this key
+			while(right.current != null && right.current.key < key) right.advance();
+			while(right.current != null && right.current.key == key)
+			{
+				RunReader r = right.current;
+				for(int i = 0; i < names.size(); i++)
+				{
+					if(names.get(i) != null && !Arrays.equals(names.get(i), r.name)) continue; // Collision of hashed keys
+					String barcode = null;
+					String umi = null;
+					if(config.l1 != -1) barcode = new String(r.payload, config.barcodeRange[0], config.barcodeRange[1] - config.barcodeRange[0], StandardCharsets.ISO_8859_1);
+					if(config.UMILength != -1) umi = new String(r.payload, config.UMIRange[0], config.UMIRange[1] - config.UMIRange[0], StandardCharsets.ISO_8859_1);
+					long ordinal = 0;
+					for(int b = 0; b < 8; b++) ordinal = (ordinal << 8) | (r.payload[config.lengthBarcode + b] & 0xFF);
+					aggregator.add(tfs.get(i), barcode, umi, ordinal);
+					break;
+				}
+				right.advance();
+			}
+		}
+		left.close();
+		right.close();
+	}
+
+	/**
+	 * Checks that no read name is twice in a sorted buffer
+	 */
+	private void checkDuplicates(Buffer b)
+	{
+		for(int i = 1; i < b.size; i++)
+		{
+			if(b.keys[i] != b.keys[i - 1]) continue;
+			for(int j = i - 1; j >= 0 && b.keys[j] == b.keys[i]; j--) if(b.names[i] == null || Arrays.equals(b.names[i], b.names[j])) duplicate(b.keys[i], b.names[i]);
+		}
+	}
+
+	private void duplicate(long key, byte[] name)
+	{
+		throw new CounterException("Duplicated read names: " + (name != null ? new String(name, StandardCharsets.ISO_8859_1) : codec.decode(key)));
+	}
+
+	/**
+	 * Sorts the buffer, writes it as a run, and empties it
+	 */
+	private File spill(Buffer b, String side)
+	{
+		b.sort();
+		try
+		{
+			if(folder == null) folder = Files.createTempDirectory(config.outputFolder != null ? new File(config.outputFolder).toPath() : new File(System.getProperty("java.io.tmpdir")).toPath(), "TFseqTools.join.").toFile();
+			folder.deleteOnExit();
+			File run = new File(folder, side + "." + (side.equals("R2") ? r2Runs.size() : r1Runs.size()) + ".run");
+			run.deleteOnExit();
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER)))
+			{
+				for(int i = 0; i < b.size; i++)
+				{
+					out.writeLong(b.keys[i]);
+					out.write(b.payloads, i * b.payloadLength, b.payloadLength);
+					if(ReadNameCodec.isHashed(b.keys[i]))
+					{
+						out.writeShort(b.names[i].length);
+						out.write(b.names[i]);
+					}
+				}
+			}
+			spilledBytes += run.length();
+			b.clear();
+			return run;
+		}
+		catch(IOException ioe)
+		{
+			throw new CounterException("Cannot write the sorted runs of the join: " + ioe.getMessage(), ioe);
+		}
+	}
+
+	/**
+	 * Records of one side (key, fixed-length payload, name for hashed keys), grown until the memory budget is reached
+	 */
+	private static class Buffer
+	{
+		final int payloadLength;
+		final long budget;
+		long[] keys = new long[1024];
+		byte[] payloads;
+		byte[][] names = new byte[1024][];
+		long nameBytes = 0;
+		int size = 0;
+
+		Buffer(int payloadLength, long budget)
+		{
+			this.payloadLength = payloadLength;
+			this.budget = budget;
+			this.payloads = new byte[1024 * payloadLength];
+		}
+
+		/**
+		 * @return false if the buffer is full (nothing is added)
+		 */
+		boolean add(long key, byte[] payload, int offset, byte[] name)
+		{
+			long recordBytes = 8 + 8 + payloadLength; // Key, name reference, payload
+			if((size + 1) * recordBytes + nameBytes > budget)
+			{
+				if(size == 0) throw new CounterException("The memory budget of the join is too small");
+				return false;
+			}
+			if(size == keys.length)
+			{
+				long capacity = Math.min(keys.length * 2L, (budget - nameBytes) / recordBytes);
+				capacity = Math.min(capacity, (Integer.MAX_VALUE - 8) / payloadLength);
+				if(capacity <= size) return false;
+				keys = Arrays.copyOf(keys, (int)capacity);
+				payloads = Arrays.copyOf(payloads, (int)capacity * payloadLength);
+				names = Arrays.copyOf(names, (int)capacity);
+			}
+			keys[size] = key;
+			System.arraycopy(payload, offset, payloads, size * payloadLength, payloadLength);
+			names[size] = name;
+			if(name != null) nameBytes += name.length + 16;
+			size++;
+			return true;
+		}
+
+		void clear()
+		{
+			Arrays.fill(names, 0, size, null);
+			size = 0;
+			nameBytes = 0;
+		}
+
+		/**
+		 * @return the TF index (R2 buffer, sorted) of this read name, or -1
+		 */
+		int lookup(ReadNameCodec codec, byte[] name, int offset, int length)
+		{
+			long key = codec.encode(name, offset, length);
+			int i = Arrays.binarySearch(keys, 0, size, key);
+			if(i < 0) return -1;
+			while(i > 0 && keys[i - 1] == key) i--;
+			for(; i < size && keys[i] == key; i++)
+			{
+				if(names[i] != null && !equals(names[i], name, offset, length)) continue; // Collision of hashed keys
+				return ((payloads[i * 2] & 0xFF) << 8) | (payloads[i * 2 + 1] & 0xFF);
+			}
+			return -1;
+		}
+
+		private static boolean equals(byte[] stored, byte[] name, int offset, int length)
+		{
+			if(stored.length != length) return false;
+			for(int i = 0; i < length; i++) if(stored[i] != name[offset + i]) return false;
+			return true;
+		}
+
+		/**
+		 * Sorts the records by key (quicksort, insertion sort for the small ranges)
+		 */
+		void sort()
+		{
+			sort(0, size - 1);
+		}
+
+		private void sort(int lo, int hi)
+		{
+			while(hi - lo > 16)
+			{
+				int mid = (lo + hi) >>> 1;
+				if(keys[mid] < keys[lo]) swap(mid, lo);
+				if(keys[hi] < keys[lo]) swap(hi, lo);
+				if(keys[hi] < keys[mid]) swap(hi, mid);
+				long pivot = keys[mid];
+				int i = lo, j = hi;
+				while(i <= j)
+				{
+					while(keys[i] < pivot) i++;
+					while(keys[j] > pivot) j--;
+					if(i <= j) swap(i++, j--);
+				}
+				if(j - lo < hi - i) // Recursion on the smaller part
+				{
+					sort(lo, j);
+					lo = i;
+				}
+				else
+				{
+					sort(i, hi);
+					hi = j;
+				}
+			}
+			for(int i = lo + 1; i <= hi; i++) for(int j = i; j > lo && keys[j] < keys[j - 1]; j--) swap(j, j - 1);
+		}
+
+		private void swap(int i, int j)
+		{
+			long k = keys[i];
+			keys[i] = keys[j];
+			keys[j] = k;
+			byte[] n = names[i];
+			names[i] = names[j];
+			names[j] = n;
+			for(int p = 0; p < payloadLength; p++)
+			{
+				byte b = payloads[i * payloadLength + p];
+				payloads[i * payloadLength + p] = payloads[j * payloadLength + p];
+				payloads[j * payloadLength + p] = b;
+			}
+		}
+	}
+
+	/**
+	 * Sequential reader of a sorted run
+	 */
+	private static class RunReader
+	{
+		private final DataInputStream in;
+		long key;
+		final byte[] payload;
+		byte[] name;
+
+		RunReader(File run, int payloadLength) throws IOException
+		{
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER));
+			this.payload = new byte[payloadLength];
+		}
+
+		/**
+		 * @return false at the end of the run
+		 */
+		boolean next() throws IOException
+		{
+			try
+			{
+				key = in.readLong();
+			}
+			catch(EOFException eof)
+			{
+				return false;
+			}
+			in.readFully(payload);
+			name = null;
+			if(ReadNameCodec.isHashed(key))
+			{
+				name = new byte[in.readShort()];
+				in.readFully(name);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * k-way merge of sorted runs: 'current' is the run with the smallest key (null at the end)
+	 */
+	private static class MergedRuns
+	{
+		private final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>((a, b) -> Long.compare(a.key, b.key));
+		RunReader current = null;
+
+		MergedRuns(ArrayList<File> runs, int payloadLength)
+		{
+			try
+			{
+				for(File run:runs)
+				{
+					RunReader r = new RunReader(run, payloadLength);
+					if(r.next()) queue.add(r);
+					else r.in.close();
+				}
+			}
+			catch(IOException ioe)
+			{
+				throw new CounterException("Cannot read the sorted runs of the join: " + ioe.getMessage(), ioe);
+			}
+			current = queue.poll();
+		}
+
+		void advance()
+		{
+			try
+			{
+				if(current.next()) queue.add(current);
+				else current.in.close();
+			}
+			catch(IOException ioe)
+			{
+				throw new CounterException("Cannot read the sorted runs of the join: " + ioe.getMessage(), ioe);
+			}
+			current = queue.poll();
+		}
+
+		void close()
+		{
+			try
+			{
+				if(current != null) current.in.close();
+				for(RunReader r:queue) r.in.close();
+			}
+			catch(IOException ioe)
+			{
+				throw new CounterException(ioe.getMessage(), ioe);
+			}
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package tools;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import model.Barcode;
+
+/**
+ * Known TF barcodes and their lookups for barcode 1 and barcode 2, built once (and shared by all runs using the same TF file)
+ */
+public class TFBarcodes
+{
+	public static final Levenshtein metric = new Levenshtein();
+
+	public final ArrayList<Barcode> list;
+	public final BarcodeMatcher matcherBC1;
+	public final BarcodeMatcher matcherBC2;
+
+	/**
+	 * @param lBC1 expected length of barcode 1
+	 * @param lBC2 expected length of barcode 2
+	 */
+	public TFBarcodes(File tfFile, int lBC1, int lBC2)
+	{
+		this.list = Barcode.readBarcodeFile(tfFile, lBC1, lBC2);
+		this.matcherBC1 = new BarcodeMatcher(list, true, metric);
+		this.matcherBC2 = new BarcodeMatcher(list, false, metric);
+	}
+
+	public int size()
+	{
+		return list.size();
+	}
+}
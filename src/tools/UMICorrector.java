@@ -0,0 +1,188 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntUnaryOperator;
+
+import model.CounterException;
+
+/**
+ * UMI error correction: a UMI is counted only if no UMI after it in the list is within the Hamming distance (same greedy rule as the original pairwise comparison).
+ * UMIs are packed 2 bits per nucleotide in a long, and the neighbours are found with a pigeonhole index: if two UMIs are within distance d, at least one of d + 1 segments is identical.
+ * UMIs that cannot be packed (N, more than 32 nucleotides, different lengths) use the pairwise comparison of Strings.
+ */
+public class UMICorrector
+{
+	private static final int MAX_PACKED_LENGTH = 32;
+	private static final int MIN_INDEXED = 64; // Below this number of UMIs, all pairs are compared
+	private static final long LOW_BITS = 0x5555555555555555L;
+
+	/**
+	 * @return the number of UMIs after correction, in the order of the array
+	 */
+	public static int correctedSize(String[] umis, int maxDistance)
+	{
+		if(umis.length < 2 || maxDistance == 0) return umis.length;
+		long[] packed = new long[umis.length];
+		int length = umis[0] == null ? -1 : umis[0].length();
+		for(int i = 0; i < umis.length && packed != null; i++)
+		{
+			if(umis[i] == null || umis[i].length() != length) packed = null;
+			else
+			{
+				packed[i] = pack(umis[i]);
+				if(packed[i] == -1) packed = null;
+			}
+		}
+		if(packed == null) return correctedSizePairwise(umis, maxDistance);
+		return correctedSize(packed, length, maxDistance);
+	}
+
+	/**
+	 * @param umis UMIs of the same length, packed with pack()
+	 * @return the number of UMIs after correction, in the order of the array
+	 */
+	public static int correctedSize(long[] umis, int length, int maxDistance)
+	{
+		int n = umis.length;
+		if(n < 2 || maxDistance == 0) return n;
+		boolean[] hasNext = new boolean[n]; // Another UMI is within the distance, after this one
+		if(n < MIN_INDEXED || maxDistance >= length) // All pairs
+		{
+			for(int i = 0; i < n; i++) for(int j = i + 1; j < n && !hasNext[i]; j++) if(distance(umis[i], umis[j]) <= maxDistance) hasNext[i] = true;
+		}
+		else // Pigeonhole on maxDistance + 1 segments
+		{
+			int nbSegments = maxDistance + 1;
+			long[] entries = new long[n];
+			for(int s = 0; s < nbSegments; s++)
+			{
+				int from = s * length / nbSegments;
+				int to = (s + 1) * length / nbSegments;
+				long mask = ((to - from) == 32 ? -1L : (1L << (2 * (to - from))) - 1) << (2 * from);
+				for(int i = 0; i < n; i++) entries[i] = (((umis[i] & mask) >>> (2 * from)) << 32) | i; // (segment, index): sorted by index in each segment bucket
+				Arrays.sort(entries);
+				for(int start = 0; start < n; )
+				{
+					int end = start + 1;
+					while(end < n && (entries[end] >>> 32) == (entries[start] >>> 32)) end++;
+					for(int a = start; a < end; a++)
+					{
+						int i = (int)entries[a];
+						for(int b = a + 1; b < end && !hasNext[i]; b++) if(distance(umis[i], umis[(int)entries[b]]) <= maxDistance) hasNext[i] = true;
+					}
+					start = end;
+				}
+			}
+		}
+		int size = 0;
+		for(boolean h:hasNext) if(!h) size++;
+		return size;
+	}
+
+	private static int correctedSizePairwise(String[] umis, int maxDistance)
+	{
+		int size = 0;
+		for(int i = 0; i < umis.length; i++)
+		{
+			boolean flag = false;
+			for(int j = i + 1; j < umis.length; j++)
+			{
+				if(Utils.hammingDistance(umis[i], umis[j]) <= maxDistance)
+				{
+					flag = true;
+					break;
+				}
+			}
+			if(!flag) size++;
+		}
+		return size;
+	}
+
+	/**
+	 * @return the UMI packed 2 bits per nucleotide (A=0, C=1, G=2, T=3, first nucleotide in the lowest bits), or -1 if it contains another character or is too long
+	 */
+	public static long pack(String umi)
+	{
+		if(umi.length() > MAX_PACKED_LENGTH) return -1;
+		long packed = 0;
+		for(int i = 0; i < umi.length(); i++)
+		{
+			long code;
+			switch(umi.charAt(i))
+			{
+				case 'A': code = 0; break;
+				case 'C': code = 1; break;
+				case 'G': code = 2; break;
+				case 'T': code = 3; break;
+				default: return -1;
+			}
+			packed |= code << (2 * i);
+		}
+		return packed;
+	}
+
+	/**
+	 * Hamming distance between two packed UMIs
+	 */
+	public static int distance(long a, long b)
+	{
+		long x = a ^ b;
+		return Long.bitCount((x | (x >>> 1)) & LOW_BITS);
+	}
+
+	/**
+	 * Computes the corrected sizes of many UMI sets on a pool of threads
+	 * @param nbSets number of UMI sets
+	 * @param correctedSize corrected size of the i-th set
+	 * @param workers shared pool of nbThreads workers, or null to start a new one
+	 * @param stage where the time of the workers is added, or null
+	 * @return the corrected sizes
+	 */
+	public static int[] correctAll(int nbSets, IntUnaryOperator correctedSize, int nbThreads, ExecutorService workers, Metrics.Stage stage)
+	{
+		int[] sizes = new int[nbSets];
+		if(nbThreads <= 1 || nbSets < 2)
+		{
+			Metrics.Timer timer = Metrics.start();
+			for(int i = 0; i < nbSets; i++) sizes[i] = correctedSize.applyAsInt(i);
+			if(stage != null) stage.stop(timer, nbSets, 0);
+			return sizes;
+		}
+		ExecutorService pool = workers != null ? workers : Executors.newFixedThreadPool(nbThreads);
+		try
+		{
+			int nbChunks = Math.min(nbSets, nbThreads * 8);
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+			for(int c = 0; c < nbChunks; c++)
+			{
+				final int from = (int)((long)c * nbSets / nbChunks);
+				final int to = (int)((long)(c + 1) * nbSets / nbChunks);
+				futures.add(pool.submit(() ->
+				{
+					Metrics.Timer timer = Metrics.start();
+					for(int i = from; i < to; i++) sizes[i] = correctedSize.applyAsInt(i);
+					if(stage != null) stage.stop(timer, to - from, 0);
+				}));
+			}
+			for(Future<?> f:futures) f.get();
+		}
+		catch(ExecutionException ee)
+		{
+			throw new CounterException(ee.getCause().getMessage(), ee.getCause());
+		}
+		catch(InterruptedException ie)
+		{
+			throw new CounterException(ie.getMessage(), ie);
+		}
+		finally
+		{
+			if(pool != workers) pool.shutdown();
+		}
+		return sizes;
+	}
+}
@@ -1,179 +1,160 @@
 package tools;
 
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
 
-import model.Barcode;
-import model.ErrorMessage;
-import model.Parameters;
-import model.Read;
+import model.CountAggregator;
+import model.CounterConfig;
+import model.CounterException;
+import model.CounterResult;
 
 public class Utils 
 {
 	private static Random rand = new Random();
 	
 	/**
-	 * Read FastQ file containing the mapping between read name, barcode and UMI.
+	 * Byte-level parser on a FastQ file (memory-mapped if the file is not compressed)
 	 * @param fastQ input file
-	 * @return BufferedReader handle
-	 * @throws Exception
+	 * @param nbInflateThreads threads decompressing ahead of the parsing (0 for none)
+	 * @return FastqParser handle
 	 */
-	public static BufferedReader readFastq(File fastQ)
+	public static FastqParser parseFastq(File fastQ, int nbInflateThreads)
 	{
-		if(fastQ.getAbsolutePath().endsWith(".fastq") || fastQ.getAbsolutePath().endsWith(".fq"))
+		return parseFastq(fastQ, "R1 fastq file", nbInflateThreads);
+	}
+	
+	/**
+	 * Byte-level parser on a FastQ file (memory-mapped if the file is not compressed)
+	 * @param fastQ input file
+	 * @param description name of the file in the error messages
+	 * @param nbInflateThreads threads decompressing ahead of the parsing (0 for none)
+	 * @return FastqParser handle
+	 */
+	public static FastqParser parseFastq(File fastQ, String description, int nbInflateThreads)
+	{
+		try
 		{
-			try
-			{
-				return new BufferedReader(new FileReader(fastQ));
-			}
-			catch(FileNotFoundException fnfe)
-			{
-				new ErrorMessage(fnfe.getMessage());
-			}
+			if(fastQ.getAbsolutePath().endsWith(".fastq") || fastQ.getAbsolutePath().endsWith(".fq")) return FastqParser.map(fastQ, description);
+			else if(fastQ.getAbsolutePath().endsWith(".fastq.gz") || fastQ.getAbsolutePath().endsWith(".fq.gz")) return new FastqParser(openGzip(fastQ, nbInflateThreads), description);
+			else throw new CounterException("The extension of the FastQ file is not recognized : " + fastQ.getAbsolutePath() + "\nIt should be '.fastq', '.fq', '.fq.gz' or '.fastq.gz'");
 		}
-		else if(fastQ.getAbsolutePath().endsWith(".fastq.gz") || fastQ.getAbsolutePath().endsWith(".fq.gz"))
+		catch(IOException ioe)
 		{
-			try
-			{
-				return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(fastQ))));
-			}
-			catch(IOException ioe)
-			{
-				new ErrorMessage(ioe.getMessage());
-			}
+			throw new CounterException(ioe.getMessage(), ioe);
 		}
-		else
+	}
+	
+	/**
+	 * Reads the first sequence of a FASTA file (e.g. the TF vector)
+	 * @return the sequence, in upper case
+	 */
+	public static byte[] readFasta(File fasta)
+	{
+		StringBuilder sequence = new StringBuilder();
+		try
 		{
-			new ErrorMessage("The extension of the FastQ file is not recognized : " + fastQ.getAbsolutePath() + "\nIt should be '.fastq', '.fq', '.fq.gz' or '.fastq.gz'");
+			BufferedReader br = new BufferedReader(new FileReader(fasta));
+			String line = br.readLine();
+			if(line == null || !line.startsWith(">")) throw new CounterException("The FASTA file " + fasta.getAbsolutePath() + " has formatting issues");
+			while((line = br.readLine()) != null && !line.startsWith(">")) sequence.append(line.trim());
+			br.close();
 		}
-		return null;
+		catch(IOException ioe)
+		{
+			throw new CounterException(ioe.getMessage(), ioe);
+		}
+		return sequence.toString().toUpperCase().getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Decompressed stream of a gzipped file. With '--inflateThreads', BGZF blocks are inflated in parallel, and plain gzip files on a read-ahead thread.
+	 */
+	private static InputStream openGzip(File fastQ, int nbInflateThreads) throws IOException
+	{
+		if(nbInflateThreads <= 0) return new GZIPInputStream(new FileInputStream(fastQ), 1 << 16);
+		BufferedInputStream raw = new BufferedInputStream(new FileInputStream(fastQ), 1 << 20);
+		raw.mark(18);
+		byte[] start = new byte[18];
+		int n = raw.read(start);
+		raw.reset();
+		if(ParallelBGZFInputStream.isBGZF(start, n)) return new ParallelBGZFInputStream(raw, nbInflateThreads);
+		return new ReadAheadInputStream(new GZIPInputStream(raw, 1 << 16));
 	}
 	
 	/**
 	 *  Reading reads barcodes/UMI from the R1 fastq file to map the UMI/barcode with the read name (lost after alignment)
+	 *  Matching reads are directly added to the count/UMI matrices
 	 * @throws Exception Yes I know...
 	 */
-	public static ArrayList<Read> readR1Fastq(HashMap<String, Barcode> mappedReads)
+	public static void readR1Fastq(CounterEngine engine, ReadNameTable mappedReads, CountAggregator aggregator)
 	{
-		ArrayList<Read> finalReads = new ArrayList<Read>();
-		
-		System.out.println("\nReading reads barcodes/UMI from the R1 fastq file...");
-		BufferedReader br = Utils.readFastq(Parameters.inputFastQFileR1);
+		CounterConfig config = engine.config;
+		CounterResult result = engine.result;
+		config.out.println("\nReading reads barcodes/UMI from the R1 fastq file...");
+		FastqParser parser = Utils.parseFastq(config.inputFastQFileR1, config.nbInflateThreads);
 		Long start = System.currentTimeMillis();
+		Metrics.Timer timer = Metrics.start();
 
-		Parameters.nbReads = 0;
+		result.nbReadsR1 = 0;
 		
-		Read read = Utils.nextRead(br);
-		while(read != null)
+		try
 		{
-			Parameters.nbReads++;
-			if(Parameters.nbReads %Parameters.chunkSize == 0) System.out.println(Parameters.nbReads + " reads were processed from fastq file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
-			Barcode bc = mappedReads.get(read.name);
-			if(bc != null)
+			while(parser.next())
 			{
-				read.tfBarcode = bc;
-				finalReads.add(read);
+				result.nbReadsR1++;
+				if(result.nbReadsR1 %config.chunkSize == 0) config.out.println(result.nbReadsR1 + " reads were processed from fastq file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+				Utils.checkR1Read(parser, config);
+				int tfIndex = mappedReads.get(parser.getBuffer(), parser.getNameOffset(), parser.getNameLength()); // Same read name codec as for the BAM file
+				if(tfIndex != -1) Utils.addR1Read(parser, tfIndex, result.nbReadsR1 - 1, aggregator, config);
 			}
-			read = Utils.nextRead(br);
 		}
-		
-		Utils.close(br);
+		finally
+		{
+			Utils.close(parser);
+		}
+		engine.metrics.get(Metrics.JOIN).stop(timer, result.nbReadsR1, config.inputFastQFileR1.length());
 				
-		System.out.println(Parameters.nbReads + " reads were processed from fastq file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");		
-		
-		return finalReads;
+		config.out.println(result.nbReadsR1 + " reads were processed from fastq file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");		
 	}
 	
 	/**
-	 * Read FastQ file containing the mapping between read name, barcode, UMI
-	 * @param fastQ input file
-	 * @return BufferedReader handle
-	 * @throws Exception
+	 * Checks that the R1 read currently parsed has the length of the barcode pattern
 	 */
-	public static Read nextRead(BufferedReader br)
+	public static void checkR1Read(FastqParser parser, CounterConfig config)
 	{
-		Read read = new Read();
-		try
+		if(parser.getSequenceLength() != config.lengthBarcode) // Checking the length is OK
 		{
-			String header = br.readLine(); // Get first line = READNAME + INDEX
-			if(header == null) return null;
-			if(!header.startsWith("@")) new ErrorMessage("R1 fastq file has formatting issues");
-			read.name = header.substring(1, header.indexOf(" "));
-			String indexes = br.readLine().trim(); // Get second line = READ
-			if(indexes.length() != Parameters.lengthBarcode) // Checking the length is OK
-			{
-				br.close();
-				System.err.println("Error while parsing R1 FastQ file");
-				System.err.println("Read found in FastQ has length " + indexes.length() + " while barcode pattern has length " + Parameters.lengthBarcode);
-				System.exit(-1);
-			}
-			try
-			{
-				if(Parameters.l1 != -1) read.barcode = indexes.substring(Parameters.barcodeRange[0], Parameters.barcodeRange[1]); // If there is a barcode to look for
-				if(Parameters.UMILength != -1) read.UMI = indexes.substring(Parameters.UMIRange[0], Parameters.UMIRange[1]);
-			}
-			catch(IndexOutOfBoundsException boe)
-			{
-				br.close();
-				System.err.println("Error while parsing R1 FastQ file");
-				System.err.println("Index found in FastQ "+ indexes +" is not according to the pattern: " + Parameters.barcodePattern);
-				System.exit(-1);
-			}
-			br.readLine(); // Third line = we don't care
-			br.readLine();  // Fourth line = qualities = we don't care
+			Utils.close(parser);
+			throw new CounterException("Error while parsing R1 FastQ file: read found in FastQ has length " + parser.getSequenceLength() + " while barcode pattern has length " + config.lengthBarcode);
 		}
-		catch(IOException ioe)
-		{
-			new ErrorMessage(ioe.getMessage());
-		}
-		return read;
 	}
 	
 	/**
-	 * Parsing the barcode pattern and check validity
-	 * @throws Exception Yes I know...
+	 * Adds the barcode and UMI of the R1 record currently parsed to the count/UMI matrices
+	 * @param ordinal index of the record in the R1 file (the matrices follow the order of the R1 file, whatever the order of the join)
 	 */
-	public static void patterning()
+	public static void addR1Read(FastqParser parser, int tfIndex, long ordinal, CountAggregator aggregator, CounterConfig config)
 	{
-		Parameters.lengthBarcode = 0;
-		for(int j = 0; j < Parameters.barcodePattern.length(); j++) 
-		{
-			char c = Parameters.barcodePattern.charAt(j);
-			switch(c)
-			{
-				case 'B':
-					Parameters.barcodeRange[0] = Parameters.lengthBarcode;
-					Parameters.lengthBarcode += Parameters.l1;
-					Parameters.barcodeRange[1] = Parameters.lengthBarcode;
-					break;					
-				case 'U':
-					Parameters.UMIRange[0] = Parameters.lengthBarcode;
-					Parameters.lengthBarcode += Parameters.UMILength;
-					Parameters.UMIRange[1] = Parameters.lengthBarcode;
-					break;
-				case '?':
-					Parameters.lengthBarcode++;
-					break;
-				default:
-					new ErrorMessage(c+" does not correspond to any authorized pattern character (?, B, U). Aborted.");
-			}
-		}
-		System.out.println("\tAccording to barcode pattern, reads of R1 FastQ file should contain "+Parameters.lengthBarcode+" characters.");
+		String barcode = null;
+		String umi = null;
+		if(config.l1 != -1) barcode = parser.getSequence(config.barcodeRange[0], config.barcodeRange[1]); // If there is a barcode to look for
+		if(config.UMILength != -1) umi = parser.getSequence(config.UMIRange[0], config.UMIRange[1]);
+		aggregator.add(tfIndex, barcode, umi, ordinal);
 	}
 	
 	public static float min(float a, float b, float c) 
@@ -302,14 +283,27 @@ public class Utils
 	
 	public static void close(BufferedReader br)
 	{
-		if(br == null) new ErrorMessage("This file handle is not initialized.");
+		if(br == null) throw new CounterException("This file handle is not initialized.");
 		try
 		{
 			br.close();
 		}
 		catch(IOException ioe)
 		{
-			new ErrorMessage(ioe.getMessage());
+			throw new CounterException(ioe.getMessage(), ioe);
+		}
+	}
+	
+	public static void close(FastqParser parser)
+	{
+		if(parser == null) throw new CounterException("This file handle is not initialized.");
+		try
+		{
+			parser.close();
+		}
+		catch(IOException ioe)
+		{
+			throw new CounterException(ioe.getMessage(), ioe);
 		}
 	}
 	
@@ -364,9 +358,9 @@ public class Utils
 	public static int hammingDistance(String a, String b) 
 	{
 		// Check if we can compute the distance
-		if (a == null || b == null) new ErrorMessage("Strings must not be null");
+		if (a == null || b == null) throw new CounterException("Strings must not be null");
 		int l = a.length();
-		if (l != b.length()) new ErrorMessage("Strings must have the same length");
+		if (l != b.length()) throw new CounterException("Strings must have the same length");
 		
 		// Compute the distance
 		int distance = 0;
@@ -0,0 +1,209 @@
+package tools;
+
+import java.util.Arrays;
+
+/**
+ * Projects the bases of an aligned read onto the reference positions of the two barcode windows, in one walk over the CIGAR.
+ * The CIGAR is given in its BAM binary form (length << 4 | operator), and the windows are written into buffers that are reused from one read to the next (one instance per thread).
+ * Same conventions as before: N/D positions are '-', inserted bases are skipped, soft-clipped bases are placed as if they were aligned, and a window partially covered by the read is completed with 'N'.
+ */
+public class WindowExtractor implements BarcodeWindows
+{
+	// BAM CIGAR operator codes
+	public static final int OP_M = 0;
+	public static final int OP_I = 1;
+	public static final int OP_D = 2;
+	public static final int OP_N = 3;
+	public static final int OP_S = 4;
+
+	private int[] cigar = new int[16];
+	private int nbCigar = 0;
+
+	private final byte[][] windows = new byte[2][];
+	private final int[] starts = new int[2];
+	private final int[] ends = new int[2];
+	private final int[] offsets = new int[2]; // Start of the window in its buffer
+	private final int[] lengths = new int[2]; // -1 if the read does not overlap the window
+
+	public WindowExtractor(int startBC1, int endBC1, int startBC2, int endBC2)
+	{
+		starts[0] = startBC1;
+		ends[0] = endBC1;
+		starts[1] = startBC2;
+		ends[1] = endBC2;
+		windows[0] = new byte[endBC1 - startBC1 + 1];
+		windows[1] = new byte[endBC2 - startBC2 + 1];
+	}
+
+	public void resetCigar()
+	{
+		nbCigar = 0;
+	}
+
+	public void addCigarElement(int operator, int length)
+	{
+		if(nbCigar == cigar.length) cigar = Arrays.copyOf(cigar, nbCigar * 2);
+		cigar[nbCigar++] = (length << 4) | operator;
+	}
+
+	/**
+	 * Extracts both windows for the CIGAR previously set with addCigarElement
+	 * @return false if the CIGAR contains an unsupported operator (H, P, =, X)
+	 */
+	public boolean extract(int alignmentStart, byte[] bases, int readLength)
+	{
+		return extract(alignmentStart, cigar, nbCigar, bases, readLength);
+	}
+
+	/**
+	 * Extracts both windows
+	 * @param cigar binary CIGAR (length << 4 | operator)
+	 * @return false if the CIGAR contains an unsupported operator (H, P, =, X)
+	 */
+	public boolean extract(int alignmentStart, int[] cigar, int nbCigar, byte[] bases, int readLength)
+	{
+		int readStart = alignmentStart;
+		if(nbCigar > 0 && (cigar[0] & 0xF) == OP_S) readStart -= cigar[0] >>> 4; // S is at the beginning of the read, i.e. the beginning of the read string starts before
+		int refPos = readStart;
+		int readPos = 0;
+		for(int i = 0; i < nbCigar; i++)
+		{
+			int length = cigar[i] >>> 4;
+			switch(cigar[i] & 0xF)
+			{
+				case OP_M:
+				case OP_S:
+					for(int w = 0; w < 2; w++) copyBases(w, refPos, length, bases, readPos, readLength);
+					refPos += length;
+					readPos += length;
+					break;
+				case OP_N:
+				case OP_D:
+					for(int w = 0; w < 2; w++) fill(w, refPos, refPos + length - 1, (byte)'-');
+					refPos += length;
+					break;
+				case OP_I:
+					readPos += length; // For an insertion, I "just" remove the part that is inserted
+					break;
+				default:
+					return false;
+			}
+		}
+		int readEnd = refPos - 1;
+
+		// Trim/pad the windows (if overlapping, if not length = -1)
+		for(int w = 0; w < 2; w++)
+		{
+			int start = starts[w];
+			int end = ends[w];
+			if(readStart > end || readEnd < start)
+			{
+				lengths[w] = -1;
+			}
+			else if(readStart >= start && readEnd < end) // Read within barcode (should not be possible, unless one read is smaller than the barcode)
+			{
+				offsets[w] = readStart - start;
+				lengths[w] = readEnd - readStart + 1;
+			}
+			else // Complete with polyN if missing part of barcode
+			{
+				fill(w, start, readStart - 1, (byte)'N');
+				fill(w, readEnd + 1, end, (byte)'N');
+				offsets[w] = 0;
+				lengths[w] = end - start + 1;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Mean quality of the read bases placed in the two windows (same placement as extract), for the CIGAR previously set with addCigarElement
+	 * @param qualities phred qualities of the read, from this offset
+	 * @return NaN if no base of the read is placed in the windows
+	 */
+	public float windowQuality(int alignmentStart, byte[] qualities, int offset, int readLength)
+	{
+		int refPos = alignmentStart;
+		if(nbCigar > 0 && (cigar[0] & 0xF) == OP_S) refPos -= cigar[0] >>> 4;
+		int readPos = 0;
+		long sum = 0;
+		int n = 0;
+		for(int i = 0; i < nbCigar; i++)
+		{
+			int length = cigar[i] >>> 4;
+			switch(cigar[i] & 0xF)
+			{
+				case OP_M:
+				case OP_S:
+					for(int w = 0; w < 2; w++)
+					{
+						int from = Math.max(refPos, starts[w]);
+						int to = Math.min(Math.min(refPos + length - 1, ends[w]), refPos + readLength - readPos - 1);
+						for(int pos = from; pos <= to; pos++) sum += qualities[offset + readPos + pos - refPos];
+						if(to >= from) n += to - from + 1;
+					}
+					refPos += length;
+					readPos += length;
+					break;
+				case OP_N:
+				case OP_D:
+					refPos += length;
+					break;
+				case OP_I:
+					readPos += length;
+					break;
+			}
+		}
+		return n == 0 ? Float.NaN : sum / (float)n;
+	}
+
+	private void copyBases(int w, int refPos, int length, byte[] bases, int readPos, int readLength)
+	{
+		int from = Math.max(refPos, starts[w]);
+		int to = Math.min(refPos + length - 1, ends[w]);
+		for(int pos = from; pos <= to; pos++)
+		{
+			int i = readPos + pos - refPos;
+			windows[w][pos - starts[w]] = i < readLength ? bases[i] : (byte)'N';
+		}
+	}
+
+	private void fill(int w, int from, int to, byte b)
+	{
+		from = Math.max(from, starts[w]);
+		to = Math.min(to, ends[w]);
+		for(int pos = from; pos <= to; pos++) windows[w][pos - starts[w]] = b;
+	}
+
+	@Override
+	public byte[] getWindow(int w)
+	{
+		return windows[w];
+	}
+
+	@Override
+	public int getOffset(int w)
+	{
+		return offsets[w];
+	}
+
+	@Override
+	public int getLength(int w)
+	{
+		return lengths[w];
+	}
+
+	@Override
+	public boolean isOnly(int w, byte b)
+	{
+		if(lengths[w] != windows[w].length) return false;
+		for(int i = 0; i < lengths[w]; i++) if(windows[w][offsets[w] + i] != b) return false;
+		return true;
+	}
+
+	public String getString(int w)
+	{
+		if(lengths[w] == -1) return null;
+		return new String(windows[w], offsets[w], lengths[w]);
+	}
+}